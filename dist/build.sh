@@ -0,0 +1,67 @@
+#!/bin/sh
+# Builds a fast-starting distribution of RDDToDataframe in dist/build:
+#
+#   lib/rddtodataframe.jar    the translator
+#   runtime/                  a Java runtime cut down by jlink to the modules the jar uses
+#   lib/rddtodataframe.jsa    an AppCDS archive of the classes loaded while translating test/
+#                             in the file, --stream and --out-dir modes
+#   lib/classes.lst           those classes, for the launcher to dump the archive again when
+#                             dist/build has been moved
+#   bin/rddtodataframe        the launcher, which runs the jar on that runtime with the archive
+#
+# Needs a JDK 11 or later on the PATH (or in JAVA_HOME) for jlink and AppCDS.
+#
+# @author Jonathan Gill
+set -e
+
+DIST=$(cd "$(dirname "$0")" && pwd)
+ROOT=$(dirname "$DIST")
+BUILD="$DIST/build"
+if [ -n "$JAVA_HOME" ]; then
+    JDK_BIN="$JAVA_HOME/bin/"
+else
+    JDK_BIN=""
+fi
+
+rm -rf "$BUILD"
+mkdir -p "$BUILD/classes" "$BUILD/lib" "$BUILD/bin"
+
+echo "Compiling"
+"${JDK_BIN}javac" -Xlint:all -encoding UTF-8 -d "$BUILD/classes" "$ROOT"/src/*.java
+"${JDK_BIN}jar" --create --file "$BUILD/lib/rddtodataframe.jar" --main-class RDDToDataframe -C "$BUILD/classes" .
+
+echo "Linking the runtime"
+MODULES=$("${JDK_BIN}jdeps" --print-module-deps --ignore-missing-deps "$BUILD/lib/rddtodataframe.jar")
+"${JDK_BIN}jlink" --add-modules "$MODULES" --strip-debug --no-header-files --no-man-pages \
+    --output "$BUILD/runtime"
+# the default CDS archive of the JDK classes is not copied by jlink, so make one for this runtime
+"$BUILD/runtime/bin/java" -Xshare:dump > /dev/null
+
+echo "Training runs over the test programs"
+# translate copies, so the outputs do not end up next to the test programs
+TRAIN=$(mktemp -d)
+trap 'rm -rf "$TRAIN"' EXIT
+mkdir "$TRAIN/programs"
+cp "$ROOT"/test/*.scala "$TRAIN/programs"
+rm -f "$TRAIN"/programs/*_output_in_dataframe.scala
+train() {
+    "$BUILD/runtime/bin/java" -XX:DumpLoadedClassList="$TRAIN/classes$1.lst" \
+        -jar "$BUILD/lib/rddtodataframe.jar" "$@" > /dev/null
+}
+for program in "$TRAIN"/programs/*.scala; do
+    cat "$program"
+    printf '\n%%%%\n'
+done | train --stream
+train --out-dir "$TRAIN/out" "$TRAIN/programs"
+# last, since it writes its outputs next to the programs
+train --explain --verify "$TRAIN"/programs/*.scala
+# one archive for all three, each class listed once in the order it was first loaded
+cat "$TRAIN"/classes*.lst | awk '/^#/ || !seen[$0]++' > "$BUILD/lib/classes.lst"
+"$BUILD/runtime/bin/java" -Xshare:dump -XX:SharedClassListFile="$BUILD/lib/classes.lst" \
+    -XX:SharedArchiveFile="$BUILD/lib/rddtodataframe.jsa" -cp "$BUILD/lib/rddtodataframe.jar" > /dev/null
+# the archive only works with the jar at this path, the launcher dumps it again elsewhere
+echo "$BUILD" > "$BUILD/lib/rddtodataframe.jsa.home"
+
+cp "$DIST/rddtodataframe" "$BUILD/bin/rddtodataframe"
+chmod +x "$BUILD/bin/rddtodataframe"
+echo "Built $BUILD ($(du -sh "$BUILD" | cut -f1)), run it with $BUILD/bin/rddtodataframe"
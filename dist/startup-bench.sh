@@ -0,0 +1,62 @@
+#!/bin/sh
+# Measures how long RDDToDataframe takes to print the first line of its translation of a small
+# program, started the plain way (java -cp on the JDK) and through each part of the
+# distribution. The program is given in --stream mode, so the first line out is translated code
+# rather than the echo of the input.
+# Run dist/build.sh first. The median of RUNS runs (default 20) is reported.
+#
+#   dist/startup-bench.sh [program.scala]
+#
+# @author Jonathan Gill
+set -e
+
+DIST=$(cd "$(dirname "$0")" && pwd)
+ROOT=$(dirname "$DIST")
+BUILD="$DIST/build"
+RUNS=${RUNS:-20}
+if [ ! -x "$BUILD/bin/rddtodataframe" ]; then
+    echo "Run $DIST/build.sh first" >&2
+    exit 1
+fi
+
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+cp "${1:-$ROOT/test/prog1.scala}" "$WORK/program.scala"
+
+now() {
+    date +%s%N
+}
+
+# prints the milliseconds from starting the command until its first line of output
+first_output() {
+    start=$(now)
+    "$@" --stream < "$WORK/program.scala" | {
+        IFS= read -r line
+        echo $(( ($(now) - start) / 1000000 ))
+        cat > /dev/null
+    }
+}
+
+median() {
+    sort -n | awk '{ times[NR] = $1 } END { print times[int((NR + 1) / 2)] }'
+}
+
+measure() {
+    label=$1
+    shift
+    first_output "$@" > /dev/null # warm the file cache
+    i=0
+    while [ $i -lt "$RUNS" ]; do
+        first_output "$@"
+        i=$((i + 1))
+    done | median | {
+        read -r ms
+        printf '%-40s %6s ms\n' "$label" "$ms"
+    }
+}
+
+echo "Time to first output, median of $RUNS runs:"
+measure "java -cp classes (before)" java -cp "$BUILD/classes" RDDToDataframe
+measure "java -jar" java -jar "$BUILD/lib/rddtodataframe.jar"
+measure "jlink runtime" "$BUILD/runtime/bin/java" -jar "$BUILD/lib/rddtodataframe.jar"
+measure "jlink runtime + AppCDS (launcher)" "$BUILD/bin/rddtodataframe"
@@ -0,0 +1,322 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    Translates whole trees of programs, for inputs that are directories or glob patterns
+
+    Directories are walked in parallel, one fork/join task per directory, and every .scala
+    file in them is an input except the _output_in_dataframe.scala files the translator
+    writes. A glob such as src/**.scala is walked from the directory before its first wildcard
+    and matched against the full path; without ** the walk stops at the depth of the pattern.
+    The files are then translated on a work-stealing ForkJoinPool: the list is split in halves
+    down to single files, so idle threads take work from busy ones and a few huge programs do
+    not hold up thousands of small ones.
+
+    Without an output directory each translation is written next to its input as usual.
+    With one, the tree below each input directory (or glob base) is mirrored under it.
+    Translations are handed in batches of WRITE_BATCH to a single writer thread that creates
+    each directory once and writes the files, so the compile threads never wait on the disk.
+    Programs that do not parse get no output file. They are listed at the end, apart from the
+    inputs that could not be read and the outputs that could not be written.
+
+    @author Jonathan Gill
+ */
+public class BatchCompiler {
+    public static final int WRITE_BATCH = 256;
+
+    private ForkJoinPool pool;
+    private Path outDir;
+    private List<String> parseFailed = Collections.synchronizedList(new ArrayList<String>());
+    private List<String> readFailed = Collections.synchronizedList(new ArrayList<String>()); // with the reason
+    private List<String> writeFailed = Collections.synchronizedList(new ArrayList<String>());
+    private ExecutorService writer = Executors.newSingleThreadExecutor();
+    private List<Path> pendingPaths = new ArrayList<>(); // translations waiting to be written
+    private List<String> pendingTexts = new ArrayList<>();
+    private Set<Path> createdDirs = new HashSet<>(); // only used on the writer thread
+
+    // an input program and where its translation goes
+    private static class Source {
+        Path path;
+        Path output;
+    }
+
+    /*
+        Constructor for the BatchCompiler class
+
+        @param threads is the number of compile threads
+        @param outDir is the root of the output tree, or null to write next to the inputs
+     */
+    public BatchCompiler(int threads, String outDir) {
+        pool = new ForkJoinPool(threads);
+        this.outDir = (outDir == null) ? null : Paths.get(outDir);
+    }
+
+    /*
+        Finds and translates every program the inputs name
+
+        @param inputs are files, directories and glob patterns
+        @return boolean false if some program could not be translated
+     */
+    public boolean run(List<String> inputs) throws IOException {
+        long begin = System.nanoTime();
+        List<Source> sources = new ArrayList<>();
+        for(String input: inputs) {
+            sources.addAll(find(input));
+        }
+        if(sources.isEmpty()) {
+            System.err.println("No .scala programs found in " + inputs);
+            return false;
+        }
+
+        pool.invoke(new CompileTask(sources, 0, sources.size()));
+        pool.shutdown();
+        submit(pendingPaths, pendingTexts);
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        long millis = (System.nanoTime() - begin) / 1000000;
+        int failures = readFailed.size() + parseFailed.size() + writeFailed.size();
+        System.out.println("Translated " + (sources.size() - failures) + " of " + sources.size()
+                + " programs in " + millis + " ms on " + pool.getParallelism() + " threads");
+        report("Could not read ", readFailed);
+        report("Parsing error in ", parseFailed);
+        report("Could not write ", writeFailed);
+        return failures == 0;
+    }
+
+    // the file system exceptions only carry the path, so name what went wrong
+    private static String reason(IOException e) {
+        if(e instanceof NoSuchFileException) {
+            return "no such file or directory";
+        } else if(e instanceof AccessDeniedException) {
+            return "permission denied";
+        } else if(e instanceof FileAlreadyExistsException) {
+            return "a file is in the way";
+        } else if(e instanceof FileSystemException && ((FileSystemException) e).getReason() != null) {
+            return ((FileSystemException) e).getReason();
+        }
+        return e.getMessage();
+    }
+
+    private static void report(String message, List<String> fileNames) {
+        Collections.sort(fileNames);
+        for(String fileName: fileNames) {
+            System.out.println(message + fileName);
+        }
+    }
+
+    /*
+        Lists the programs one input names
+
+        @param input is a file, a directory or a glob pattern
+        @return List<Source> the programs with their output paths
+     */
+    private List<Source> find(String input) throws IOException {
+        int wildcard = firstWildcard(input);
+        Path base;
+        PathMatcher matcher = null;
+        if(wildcard >= 0) {
+            int slash = input.lastIndexOf('/', wildcard);
+            base = Paths.get((slash < 0) ? "." : (slash == 0) ? "/" : input.substring(0, slash));
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+        } else {
+            base = Paths.get(input);
+        }
+
+        List<Path> files;
+        if(matcher == null && !Files.isDirectory(base)) {
+            if(!Files.isRegularFile(base)) {
+                throw new IOException("no such file " + input);
+            }
+            files = Collections.singletonList(base);
+            base = base.toAbsolutePath().getParent();
+        } else {
+            int depth = Integer.MAX_VALUE;
+            if(matcher != null && !input.contains("**")) { // * does not cross directories
+                depth = input.substring(input.lastIndexOf('/', wildcard) + 1).split("/").length - 1;
+            }
+            files = pool.invoke(new WalkTask(base, matcher, base.toString().equals("."), depth));
+        }
+
+        List<Source> sources = new ArrayList<>();
+        for(Path file: files) {
+            Source source = new Source();
+            source.path = file;
+            String name = file.getFileName().toString();
+            name = name.substring(0, name.lastIndexOf('.')) + RDDToDataframe.OUTPUT_SUFFIX;
+            if(outDir == null) {
+                source.output = file.resolveSibling(name);
+            } else {
+                Path relative = base.toAbsolutePath().normalize().relativize(file.toAbsolutePath().normalize());
+                source.output = outDir.resolve(relative).resolveSibling(name);
+            }
+            sources.add(source);
+        }
+        Collections.sort(sources, new Comparator<Source>() {
+            public int compare(Source a, Source b) {
+                return a.path.compareTo(b.path);
+            }
+        });
+        return sources;
+    }
+
+    private static int firstWildcard(String input) {
+        for(int i = 0; i < input.length(); i++) {
+            if("*?[{".indexOf(input.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // lists the programs under one directory, with a subtask for each subdirectory
+    private static class WalkTask extends RecursiveTask<List<Path>> {
+        private static final long serialVersionUID = 1L;
+
+        private Path dir;
+        private PathMatcher matcher;
+        private boolean relative; // the glob has no directory part, so match paths without ./
+        private int depth; // how many levels of subdirectories can still match
+
+        WalkTask(Path dir, PathMatcher matcher, boolean relative, int depth) {
+            this.dir = dir;
+            this.matcher = matcher;
+            this.relative = relative;
+            this.depth = depth;
+        }
+
+        @Override
+        protected List<Path> compute() {
+            List<Path> files = new ArrayList<>();
+            List<WalkTask> subdirs = new ArrayList<>();
+            try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for(Path entry: entries) {
+                    if(Files.isDirectory(entry)) {
+                        if(depth == 0) {
+                            continue;
+                        }
+                        WalkTask task = new WalkTask(entry, matcher, relative, depth - 1);
+                        task.fork();
+                        subdirs.add(task);
+                    } else if(isSource(entry)) {
+                        files.add(entry);
+                    }
+                }
+            } catch(IOException e) {
+                System.err.println("Could not read directory " + dir + ": " + e.getMessage());
+            }
+            for(WalkTask task: subdirs) {
+                files.addAll(task.join());
+            }
+            return files;
+        }
+
+        private boolean isSource(Path file) {
+            String name = file.getFileName().toString();
+            if(!name.endsWith(".scala") || name.endsWith(RDDToDataframe.OUTPUT_SUFFIX)) {
+                return false;
+            }
+            return matcher == null || matcher.matches(relative ? file.normalize() : file);
+        }
+    }
+
+    // translates sources[from..to), splitting the range until it is a single file
+    private class CompileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private List<Source> sources;
+        private int from;
+        private int to;
+
+        CompileTask(List<Source> sources, int from, int to) {
+            this.sources = sources;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new CompileTask(sources, from, middle), new CompileTask(sources, middle, to));
+                return;
+            }
+            Source source = sources.get(from);
+            String out;
+            try {
+                out = translate(source.path);
+            } catch(IOException e) {
+                readFailed.add(source.path + ": " + reason(e));
+                return;
+            }
+            if(out == null) {
+                parseFailed.add(source.path.toString());
+            } else {
+                write(source.output, out);
+            }
+        }
+    }
+
+    /*
+        Translates one program
+
+        @param path is the input file
+        @return String the output program text, or null if it could not be parsed
+     */
+    private static String translate(Path path) throws IOException {
+        byte[] text = Files.readAllBytes(path);
+        RDDParser parser = new RDDParser();
+        parser.setEcho(false);
+        RDDScanner scanner = new RDDScanner(new ByteArrayInputStream(text));
+        scanner.setExitOnError(false);
+        if(!parser.parse(scanner)) {
+            return null;
+        }
+        return parser.getOutput();
+    }
+
+    // queues a translation and hands the queue to the writer once it holds a whole batch
+    private void write(Path output, String text) {
+        synchronized(this) {
+            pendingPaths.add(output);
+            pendingTexts.add(text);
+            if(pendingPaths.size() < WRITE_BATCH) {
+                return;
+            }
+            submit(pendingPaths, pendingTexts);
+            pendingPaths = new ArrayList<>();
+            pendingTexts = new ArrayList<>();
+        }
+    }
+
+    private void submit(final List<Path> paths, final List<String> texts) {
+        writer.execute(new Runnable() {
+            public void run() {
+                writeAll(paths, texts);
+            }
+        });
+    }
+
+    // runs on the writer thread
+    private void writeAll(List<Path> paths, List<String> texts) {
+        for(int i = 0; i < paths.size(); i++) {
+            Path output = paths.get(i);
+            try {
+                Path parent = output.toAbsolutePath().getParent();
+                if(createdDirs.add(parent)) {
+                    Files.createDirectories(parent);
+                }
+                Files.write(output, texts.get(i).getBytes(StandardCharsets.UTF_8));
+            } catch(IOException e) {
+                writeFailed.add(output + ": " + reason(e));
+            }
+        }
+    }
+}
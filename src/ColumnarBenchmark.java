@@ -0,0 +1,108 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/*
+    Compares ColumnarEngine with the tree-walking DataframeInterpreter on sample programs
+
+    The range of each program is replaced by sc.range(0, rows) before it is translated, so
+    the filters are folded into the new bounds as usual. Both engines are warmed up on the
+    same plan before they are timed, and every timed run is checked against the other
+    engine's result. The tree-walking interpreter is timed over at most naiveRows rows,
+    since it is too slow for the full range, and the two are compared in rows per second.
+
+    Usage: java ColumnarBenchmark [--rows n] [--naive-rows n] [--runs n] file...
+
+    @author Jonathan Gill
+ */
+public class ColumnarBenchmark {
+    private static final int WARMUP_RUNS = 3;
+
+    public static void main(String[] args) throws IOException {
+        long rows = 100000000;
+        long naiveRows = 5000000;
+        int runs = 5;
+        int first = 0;
+        for(; first + 1 < args.length && args[first].startsWith("--"); first += 2) {
+            long value = Long.parseLong(args[first + 1]);
+            if(args[first].equals("--rows")) {
+                rows = value;
+            } else if(args[first].equals("--naive-rows")) {
+                naiveRows = value;
+            } else if(args[first].equals("--runs")) {
+                runs = (int) value;
+            } else {
+                System.err.println("Unknown option " + args[first]);
+                System.exit(1);
+            }
+        }
+        if(first >= args.length) {
+            System.err.println("Please provide an input file to process");
+            System.exit(1);
+        }
+
+        System.out.printf("%-16s %14s %15s %10s %8s%n", "program", "tree rows/s", "columnar rows/s", "columnar s", "speedup");
+        for(int i = first; i < args.length; i++) {
+            String source = new String(Files.readAllBytes(Paths.get(args[i])), StandardCharsets.UTF_8);
+            DataframePlan plan = translate(source, rows);
+            DataframePlan naivePlan = translate(source, Math.min(rows, naiveRows));
+            if(plan == null || naivePlan == null) {
+                System.out.println(args[i] + ": parsing error");
+                continue;
+            }
+
+            PipelineResult expected = DataframeInterpreter.run(naivePlan);
+            for(int w = 0; w < WARMUP_RUNS; w++) {
+                check(args[i], expected, ColumnarEngine.run(naivePlan));
+                DataframeInterpreter.run(naivePlan);
+                ColumnarEngine.run(plan);
+            }
+            long naiveNanos = Long.MAX_VALUE;
+            long columnarNanos = Long.MAX_VALUE;
+            PipelineResult reference = ColumnarEngine.run(plan);
+            for(int r = 0; r < runs; r++) {
+                long begin = System.nanoTime();
+                PipelineResult naive = DataframeInterpreter.run(naivePlan);
+                naiveNanos = Math.min(naiveNanos, System.nanoTime() - begin);
+                check(args[i], expected, naive);
+
+                begin = System.nanoTime();
+                PipelineResult columnar = ColumnarEngine.run(plan);
+                columnarNanos = Math.min(columnarNanos, System.nanoTime() - begin);
+                check(args[i], reference, columnar);
+            }
+            double naiveRate = rowsOf(naivePlan) * 1e9 / naiveNanos;
+            double columnarRate = rowsOf(plan) * 1e9 / columnarNanos;
+            System.out.printf("%-16s %14.3g %15.3g %10.3f %7.1fx%n", new File(args[i]).getName(),
+                    naiveRate, columnarRate, columnarNanos / 1e9, columnarRate / naiveRate);
+        }
+    }
+
+    /*
+        Translates a program after replacing its range
+
+        @param source is the program text
+        @param rows is the size of the new range
+        @return DataframePlan the translation, or null if it does not parse
+     */
+    private static DataframePlan translate(String source, long rows) {
+        String resized = source.replaceFirst("sc\\s*\\.\\s*range\\s*\\([^)]*\\)", "sc.range(0," + rows + ")");
+        RDDParser parser = new RDDParser();
+        parser.setEcho(false);
+        RDDScanner scanner = new RDDScanner(new ByteArrayInputStream(resized.getBytes(StandardCharsets.UTF_8)));
+        return parser.parse(scanner) ? parser.getPlan() : null;
+    }
+
+    // the rows generated, which is what both engines spend their time on
+    private static long rowsOf(DataframePlan plan) {
+        return Math.max(1, plan.end - plan.start);
+    }
+
+    private static void check(String fileName, PipelineResult expected, PipelineResult actual) {
+        String difference = expected.difference(actual);
+        if(difference != null) {
+            System.err.println(fileName + ": the engines disagree, " + difference);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,538 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    Vectorized, parallel evaluation of a translated pipeline, for local previews and checks
+    over large ranges
+
+    Every stage expression is compiled once into a tree of kernels. A kernel runs one operator
+    over a whole batch of BATCH_SIZE rows held in primitive long[] columns, so the interpreter
+    overhead is paid once per batch instead of once per row, there is no boxing, and the inner
+    loops are simple enough for the JIT to unroll and vectorize. Operators with a literal
+    operand get their own loops, and results are wrapped to the node's Spark type in a
+    separate pass only when that type is narrower than bigint. Both branches of an if are
+    computed and the result is selected row by row; filters compact the columns in place.
+
+    Spark returns null for % by zero. Only kernels under a % carry a null mask, and a null that
+    reaches a projected column, a filter or an if condition is reported the same way
+    DataframeInterpreter reports it.
+
+    The range is split on a ForkJoinPool into tasks of TASK_ROWS rows, each with its own
+    buffers, and their results are put together in range order.
+
+    @author Jonathan Gill
+ */
+public class ColumnarEngine {
+    public static final int BATCH_SIZE = 4096;
+    public static final int TASK_ROWS = 64 * BATCH_SIZE;
+
+    private DataframePlan plan;
+    private List<Kernel[]> stages;
+    private int buffers;
+    private int masks;
+
+    /*
+        Compiles the stages of a plan
+
+        @param plan is the translated pipeline
+     */
+    public ColumnarEngine(DataframePlan plan) {
+        this.plan = plan;
+        stages = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        Map<String, String> types = new HashMap<>();
+        names.add("id");
+        types.put("id", "bigint");
+        for(DataframeStage stage: plan.stages) {
+            Kernel[] kernels = new Kernel[stage.columns.size()];
+            for(int i = 0; i < kernels.length; i++) {
+                kernels[i] = compile(stage.columns.get(i), names, types);
+            }
+            stages.add(kernels);
+            if(stage.type.equals("select")) {
+                Map<String, String> newTypes = new HashMap<>();
+                for(int i = 0; i < kernels.length; i++) {
+                    newTypes.put(stage.names.get(i), WidthInference.typeOf(stage.columns.get(i), types));
+                }
+                names = stage.names;
+                types = newTypes;
+            }
+        }
+    }
+
+    /*
+        Runs the plan over its whole range on the common ForkJoinPool
+
+        @param plan is the translated pipeline
+        @return PipelineResult what the action returns
+     */
+    public static PipelineResult run(DataframePlan plan) {
+        ColumnarEngine engine;
+        try {
+            engine = new ColumnarEngine(plan);
+        } catch(IllegalArgumentException e) {
+            PipelineResult result = new PipelineResult();
+            result.error = "unsupported expression: " + e.getMessage();
+            return result;
+        }
+        return engine.run();
+    }
+
+    public PipelineResult run() {
+        Partial partial = ForkJoinPool.commonPool().invoke(new RangeTask(plan.start, Math.max(plan.start, plan.end)));
+        PipelineResult result = partial.collected;
+        if(partial.error != null) {
+            result.error = partial.error;
+        } else if(plan.terminal.equals("count")) {
+            result.scalar = "" + partial.count;
+        } else if(plan.terminal.equals("sum")) {
+            result.scalar = "" + (double) partial.total;
+        } else if(!plan.terminal.equals("collect")) {
+            if(partial.count == 0) { // the aggregate is null and reading it fails
+                result.error = "empty collection";
+            } else {
+                result.scalar = "" + (plan.aggregate.equals("sum") ? partial.total : partial.best);
+            }
+        }
+        return result;
+    }
+
+    // what one part of the range produced
+    private static class Partial {
+        PipelineResult collected = new PipelineResult();
+        long count;
+        long total;
+        long best;
+        String error;
+    }
+
+    // the buffers of one task, every kernel writes to its own buffer and mask
+    private static class Buffers {
+        long[][] values;
+        boolean[][] nulls;
+
+        Buffers(int buffers, int masks) {
+            values = new long[buffers][BATCH_SIZE];
+            nulls = new boolean[masks][BATCH_SIZE];
+        }
+    }
+
+    private class RangeTask extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+
+        private long low;
+        private long high;
+
+        RangeTask(long low, long high) {
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        protected Partial compute() {
+            if(high - low <= TASK_ROWS) {
+                return evaluate(low, high);
+            }
+            long middle = low + (high - low) / 2;
+            RangeTask left = new RangeTask(low, middle);
+            left.fork();
+            Partial right = new RangeTask(middle, high).compute();
+            return combine(left.join(), right);
+        }
+    }
+
+    private Partial combine(Partial left, Partial right) {
+        if(left.error == null) {
+            left.error = right.error;
+        }
+        if(right.count > 0) {
+            if(left.count == 0) {
+                left.best = right.best;
+            } else if("max".equals(plan.aggregate)) {
+                left.best = Math.max(left.best, right.best);
+            } else if("min".equals(plan.aggregate)) {
+                left.best = Math.min(left.best, right.best);
+            }
+        }
+        left.count += right.count;
+        left.total += right.total;
+        left.collected.append(right.collected);
+        return left;
+    }
+
+    /*
+        Runs the rows low until high, one batch at a time
+
+        @return Partial what these rows produce
+     */
+    private Partial evaluate(long low, long high) {
+        Partial partial = new Partial();
+        Buffers buffers = new Buffers(this.buffers, masks);
+        long[] ids = new long[BATCH_SIZE];
+        for(long base = low; base < high && partial.error == null; base += BATCH_SIZE) {
+            int n = (int) Math.min(BATCH_SIZE, high - base);
+            for(int i = 0; i < n; i++) {
+                ids[i] = base + i;
+            }
+            long[][] columns = {ids};
+            for(int s = 0; s < stages.size() && n > 0; s++) {
+                Kernel[] kernels = stages.get(s);
+                if(plan.stages.get(s).type.equals("where")) {
+                    long[] test = kernels[0].eval(buffers, columns, n);
+                    if(kernels[0].hasNull(buffers, n)) {
+                        partial.error = "null from % by zero";
+                        break;
+                    }
+                    n = compact(columns, test, n);
+                } else {
+                    long[][] next = new long[kernels.length][];
+                    for(int c = 0; c < kernels.length; c++) {
+                        next[c] = kernels[c].eval(buffers, columns, n);
+                        if(kernels[c].hasNull(buffers, n)) {
+                            partial.error = "null from % by zero";
+                        }
+                    }
+                    columns = next;
+                }
+            }
+            if(partial.error != null || n == 0) {
+                continue;
+            }
+            if(plan.terminal.equals("collect")) {
+                partial.collected.addColumns(columns, n);
+            } else {
+                long[] values = columns[0];
+                long total = partial.total;
+                long best = (partial.count == 0) ? values[0] : partial.best;
+                if("max".equals(plan.aggregate)) {
+                    for(int i = 0; i < n; i++) {
+                        best = Math.max(best, values[i]);
+                    }
+                } else if("min".equals(plan.aggregate)) {
+                    for(int i = 0; i < n; i++) {
+                        best = Math.min(best, values[i]);
+                    }
+                } else {
+                    for(int i = 0; i < n; i++) {
+                        total += values[i];
+                    }
+                }
+                partial.total = total;
+                partial.best = best;
+            }
+            partial.count += n;
+        }
+        return partial;
+    }
+
+    /*
+        Keeps the rows whose test is not 0, in place. Columns that share an array are only
+        compacted once.
+
+        @return int the number of rows left
+     */
+    private static int compact(long[][] columns, long[] test, int n) {
+        int kept = 0;
+        for(int c = 0; c < columns.length; c++) {
+            boolean done = false;
+            for(int d = 0; d < c; d++) {
+                done |= columns[d] == columns[c];
+            }
+            if(done) {
+                continue;
+            }
+            long[] column = columns[c];
+            kept = 0;
+            for(int i = 0; i < n; i++) {
+                if(test[i] != 0) {
+                    column[kept++] = column[i];
+                }
+            }
+        }
+        return kept;
+    }
+
+    /*
+        Builds the kernel for an expression and gives every node its own buffer, and a
+        null mask if it is under a %
+
+        @return Kernel the root of the kernel tree
+     */
+    private Kernel compile(SQLExpr expr, List<String> names, Map<String, String> types) {
+        Kernel kernel;
+        if(expr.type.equals("Column")) {
+            int column = names.indexOf(expr.word);
+            if(column < 0) {
+                throw new IllegalArgumentException("Unknown column " + expr.word);
+            }
+            return new ColumnKernel(column);
+        } else if(expr.type.equals("Number")) {
+            kernel = new ConstantKernel(Long.parseLong(expr.word));
+        } else if(expr.type.equals("Cast")) {
+            kernel = new CastKernel(compile(expr.args[0], names, types), expr.word);
+        } else if(expr.type.equals("If")) {
+            kernel = new IfKernel(compile(expr.args[0], names, types),
+                    compile(expr.args[1], names, types), compile(expr.args[2], names, types));
+        } else {
+            kernel = new BinaryKernel(expr.type.equals("Comp"), expr.word, WidthInference.typeOf(expr, types),
+                    compile(expr.args[0], names, types), compile(expr.args[1], names, types));
+        }
+        kernel.buffer = buffers++;
+        if(kernel.canBeNull()) {
+            kernel.mask = masks++;
+        }
+        return kernel;
+    }
+
+    /*
+        One operator over a batch. eval returns the array holding the result, which is the
+        kernel's own buffer or, for a column, the input array itself.
+     */
+    private static abstract class Kernel {
+        int buffer = -1;
+        int mask = -1;
+        Kernel[] inputs = new Kernel[0];
+
+        abstract long[] eval(Buffers buffers, long[][] columns, int n);
+
+        boolean canBeNull() {
+            for(Kernel input: inputs) {
+                if(input.mask >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean hasNull(Buffers buffers, int n) {
+            if(mask < 0) {
+                return false;
+            }
+            boolean[] nulls = buffers.nulls[mask];
+            for(int i = 0; i < n; i++) {
+                if(nulls[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // a row is null if any input is null
+        void mergeNulls(Buffers buffers, int n) {
+            if(mask < 0) {
+                return;
+            }
+            boolean[] nulls = buffers.nulls[mask];
+            Arrays.fill(nulls, 0, n, false);
+            for(Kernel input: inputs) {
+                if(input.mask >= 0) {
+                    boolean[] other = buffers.nulls[input.mask];
+                    for(int i = 0; i < n; i++) {
+                        nulls[i] |= other[i];
+                    }
+                }
+            }
+        }
+    }
+
+    private static class ColumnKernel extends Kernel {
+        private int column;
+
+        ColumnKernel(int column) {
+            this.column = column;
+        }
+
+        long[] eval(Buffers buffers, long[][] columns, int n) {
+            return columns[column];
+        }
+    }
+
+    private static class ConstantKernel extends Kernel {
+        long value;
+
+        ConstantKernel(long value) {
+            this.value = value;
+        }
+
+        long[] eval(Buffers buffers, long[][] columns, int n) {
+            long[] out = buffers.values[buffer];
+            Arrays.fill(out, 0, n, value);
+            return out;
+        }
+    }
+
+    private static class CastKernel extends Kernel {
+        private String type;
+
+        CastKernel(Kernel input, String type) {
+            this.inputs = new Kernel[]{input};
+            this.type = type;
+        }
+
+        long[] eval(Buffers buffers, long[][] columns, int n) {
+            long[] in = inputs[0].eval(buffers, columns, n);
+            long[] out = buffers.values[buffer];
+            if(type.equals("smallint")) {
+                for(int i = 0; i < n; i++) {
+                    out[i] = (short) in[i];
+                }
+            } else if(type.equals("int")) {
+                for(int i = 0; i < n; i++) {
+                    out[i] = (int) in[i];
+                }
+            } else {
+                System.arraycopy(in, 0, out, 0, n);
+            }
+            mergeNulls(buffers, n);
+            return out;
+        }
+    }
+
+    private static class IfKernel extends Kernel {
+        IfKernel(Kernel cond, Kernel then, Kernel otherwise) {
+            this.inputs = new Kernel[]{cond, then, otherwise};
+        }
+
+        long[] eval(Buffers buffers, long[][] columns, int n) {
+            long[] cond = inputs[0].eval(buffers, columns, n);
+            long[] then = inputs[1].eval(buffers, columns, n);
+            long[] otherwise = inputs[2].eval(buffers, columns, n);
+            long[] out = buffers.values[buffer];
+            for(int i = 0; i < n; i++) {
+                out[i] = (cond[i] != 0) ? then[i] : otherwise[i];
+            }
+            if(mask >= 0) { // only the branch that was taken counts
+                boolean[] nulls = buffers.nulls[mask];
+                for(int i = 0; i < n; i++) {
+                    boolean condNull = inputs[0].mask >= 0 && buffers.nulls[inputs[0].mask][i];
+                    Kernel taken = (cond[i] != 0) ? inputs[1] : inputs[2];
+                    nulls[i] = condNull || (taken.mask >= 0 && buffers.nulls[taken.mask][i]);
+                }
+            }
+            return out;
+        }
+    }
+
+    private static class BinaryKernel extends Kernel {
+        private boolean comparison;
+        private String op;
+        private String type;
+
+        BinaryKernel(boolean comparison, String op, String type, Kernel left, Kernel right) {
+            this.comparison = comparison;
+            this.op = op;
+            this.type = type;
+            this.inputs = new Kernel[]{left, right};
+        }
+
+        @Override
+        boolean canBeNull() {
+            return op.equals("%") || super.canBeNull();
+        }
+
+        long[] eval(Buffers buffers, long[][] columns, int n) {
+            long[] a = inputs[0].eval(buffers, columns, n);
+            long[] out = buffers.values[buffer];
+            if(inputs[1] instanceof ConstantKernel) {
+                long k = ((ConstantKernel) inputs[1]).value;
+                evalConstant(a, k, out, n);
+                mergeNulls(buffers, n);
+                if(op.equals("%") && k == 0) { // x % 0 is null in Spark
+                    Arrays.fill(buffers.nulls[mask], 0, n, true);
+                }
+            } else {
+                long[] b = inputs[1].eval(buffers, columns, n);
+                evalColumns(a, b, out, n);
+                mergeNulls(buffers, n);
+                if(op.equals("%")) {
+                    boolean[] nulls = buffers.nulls[mask];
+                    for(int i = 0; i < n; i++) {
+                        nulls[i] |= b[i] == 0;
+                    }
+                }
+            }
+            if(!comparison && type.equals("int")) {
+                for(int i = 0; i < n; i++) {
+                    out[i] = (int) out[i];
+                }
+            } else if(!comparison && type.equals("smallint")) {
+                for(int i = 0; i < n; i++) {
+                    out[i] = (short) out[i];
+                }
+            }
+            return out;
+        }
+
+        private void evalConstant(long[] a, long k, long[] out, int n) {
+            switch(op) {
+                case "+":
+                    for(int i = 0; i < n; i++) out[i] = a[i] + k;
+                    break;
+                case "-":
+                    for(int i = 0; i < n; i++) out[i] = a[i] - k;
+                    break;
+                case "*":
+                    for(int i = 0; i < n; i++) out[i] = a[i] * k;
+                    break;
+                case "%":
+                    if(k == 0) {
+                        Arrays.fill(out, 0, n, 0);
+                    } else {
+                        for(int i = 0; i < n; i++) out[i] = a[i] % k;
+                    }
+                    break;
+                case "==":
+                    for(int i = 0; i < n; i++) out[i] = (a[i] == k) ? 1 : 0;
+                    break;
+                case "!=":
+                    for(int i = 0; i < n; i++) out[i] = (a[i] != k) ? 1 : 0;
+                    break;
+                case "<":
+                    for(int i = 0; i < n; i++) out[i] = (a[i] < k) ? 1 : 0;
+                    break;
+                case ">":
+                    for(int i = 0; i < n; i++) out[i] = (a[i] > k) ? 1 : 0;
+                    break;
+                case "<=":
+                    for(int i = 0; i < n; i++) out[i] = (a[i] <= k) ? 1 : 0;
+                    break;
+                default:
+                    for(int i = 0; i < n; i++) out[i] = (a[i] >= k) ? 1 : 0;
+            }
+        }
+
+        private void evalColumns(long[] a, long[] b, long[] out, int n) {
+            switch(op) {
+                case "+":
+                    for(int i = 0; i < n; i++) out[i] = a[i] + b[i];
+                    break;
+                case "-":
+                    for(int i = 0; i < n; i++) out[i] = a[i] - b[i];
+                    break;
+                case "*":
+                    for(int i = 0; i < n; i++) out[i] = a[i] * b[i];
+                    break;
+                case "%":
+                    for(int i = 0; i < n; i++) out[i] = (b[i] == 0) ? 0 : a[i] % b[i];
+                    break;
+                case "==":
+                    for(int i = 0; i < n; i++) out[i] = (a[i] == b[i]) ? 1 : 0;
+                    break;
+                case "!=":
+                    for(int i = 0; i < n; i++) out[i] = (a[i] != b[i]) ? 1 : 0;
+                    break;
+                case "<":
+                    for(int i = 0; i < n; i++) out[i] = (a[i] < b[i]) ? 1 : 0;
+                    break;
+                case ">":
+                    for(int i = 0; i < n; i++) out[i] = (a[i] > b[i]) ? 1 : 0;
+                    break;
+                case "<=":
+                    for(int i = 0; i < n; i++) out[i] = (a[i] <= b[i]) ? 1 : 0;
+                    break;
+                default:
+                    for(int i = 0; i < n; i++) out[i] = (a[i] >= b[i]) ? 1 : 0;
+            }
+        }
+    }
+}
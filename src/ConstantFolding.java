@@ -0,0 +1,143 @@
+import java.util.*;
+/*
+    Computes the parts of expressions that only involve literals
+
+    Arithmetic on two literals is replaced by its value, computed in the type Spark would use
+    and wrapped around the same way, and adding 0 or multiplying by 1 is dropped. A where whose
+    condition compares two literals is removed when it is always true, and empties the range
+    when it is never true. Results below 0 are left alone, since the SQL text has no negative
+    literals and x--5 would start a comment, and so is % by zero, which is null in Spark.
+
+    @author Jonathan Gill
+ */
+public class ConstantFolding implements OptimizerRule {
+    private static final Map<String, String> NO_COLUMNS = Collections.emptyMap();
+
+    public String getName() {
+        return "ConstantFolding";
+    }
+
+    public boolean apply(DataframePlan plan) {
+        boolean changed = false;
+        Map<SQLExpr, SQLExpr> folded = new IdentityHashMap<>(); // each shared node is folded once
+        for(int i = 0; i < plan.stages.size(); i++) {
+            DataframeStage stage = plan.stages.get(i);
+            for(int c = 0; c < stage.columns.size(); c++) {
+                SQLExpr before = stage.columns.get(c);
+                stage.columns.set(c, fold(before, folded));
+                changed |= stage.columns.get(c) != before; // nodes are interned, so == is equality
+            }
+            SQLExpr predicate = stage.columns.get(0);
+            if(stage.type.equals("where") && predicate.type.equals("Comp") && isLiteral(predicate.args)) {
+                if(!compare(predicate)) { // no row gets through
+                    plan.end = plan.start;
+                }
+                if(stage.source != null) {
+                    stage.source.folded = true;
+                    stage.source.rowsAfter = plan.end - plan.start;
+                }
+                plan.stages.remove(i--);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private SQLExpr fold(SQLExpr expr, Map<SQLExpr, SQLExpr> folded) {
+        SQLExpr result = folded.get(expr);
+        if(result == null) {
+            result = foldNode(expr, folded);
+            folded.put(expr, result);
+        }
+        return result;
+    }
+
+    private SQLExpr foldNode(SQLExpr expr, Map<SQLExpr, SQLExpr> folded) {
+        SQLExpr[] args = new SQLExpr[expr.args.length];
+        for(int i = 0; i < args.length; i++) {
+            args[i] = fold(expr.args[i], folded);
+        }
+        expr = expr.with(args);
+        if(!expr.type.equals("Op")) {
+            return expr;
+        }
+        SQLExpr a = expr.args[0];
+        SQLExpr b = expr.args[1];
+        if(isLiteral(expr.args)) {
+            long x = Long.parseLong(a.word);
+            long y = Long.parseLong(b.word);
+            long value;
+            if(expr.word.equals("+")) {
+                value = x + y;
+            } else if(expr.word.equals("-")) {
+                value = x - y;
+            } else if(expr.word.equals("*")) {
+                value = x * y;
+            } else if(y != 0) {
+                value = x % y;
+            } else {
+                return expr;
+            }
+            value = WidthInference.wrap(value, WidthInference.typeOf(expr, NO_COLUMNS));
+            if(value < 0) {
+                return expr;
+            }
+            return SQLExpr.make("Number", "" + value);
+        }
+        if((expr.word.equals("+") || expr.word.equals("-")) && isNumber(b, "0")) {
+            return a;
+        } else if(expr.word.equals("+") && isNumber(a, "0")) {
+            return b;
+        } else if(expr.word.equals("*") && isNumber(b, "1")) {
+            return a;
+        } else if(expr.word.equals("*") && isNumber(a, "1")) {
+            return b;
+        }
+        return expr;
+    }
+
+    /*
+        Decides a comparison between two literals
+
+        @param comp is a Comp node whose operands are both Number
+        @return boolean the outcome
+     */
+    public static boolean compare(SQLExpr comp) {
+        long x = Long.parseLong(comp.args[0].word);
+        long y = Long.parseLong(comp.args[1].word);
+        if(comp.word.equals("==")) {
+            return x == y;
+        } else if(comp.word.equals("!=")) {
+            return x != y;
+        } else if(comp.word.equals("<")) {
+            return x < y;
+        } else if(comp.word.equals(">")) {
+            return x > y;
+        } else if(comp.word.equals("<=")) {
+            return x <= y;
+        }
+        return x >= y;
+    }
+
+    // true if every one of the expressions is a number literal that fits a Long
+    public static boolean isLiteral(SQLExpr[] exprs) {
+        if(exprs.length == 0) {
+            return false;
+        }
+        for(SQLExpr expr: exprs) {
+            if(!expr.type.equals("Number")) {
+                return false;
+            }
+            try {
+                Long.parseLong(expr.word);
+            } catch(NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNumber(SQLExpr expr, String value) {
+        return expr.type.equals("Number") && expr.word.equals(value);
+    }
+}
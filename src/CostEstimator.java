@@ -0,0 +1,122 @@
+import java.util.*;
+/*
+    Static cost estimates for a translated pipeline
+
+    Costs are in units of the work needed to project one column of one row. Arithmetic,
+    comparisons and casts cost one unit, % costs more because it is an integer division,
+    and an if costs a little extra for the branch. Filters that are left after the range
+    folding are assumed to keep half of their rows.
+
+    @author Jonathan Gill
+ */
+public class CostEstimator {
+    public static final double FILTER_SELECTIVITY = 0.5;
+
+    /*
+        Number of rows spark.range generates for the plan
+
+        @param plan is the translated pipeline
+        @return long rows in the range
+     */
+    public static long rangeRows(DataframePlan plan) {
+        return Math.max(0, plan.end - plan.start);
+    }
+
+    /*
+        Estimated fraction of the range rows that reach the given stage
+
+        @param plan is the translated pipeline
+        @param index is the position of the stage in plan.stages
+        @return double between 0 and 1
+     */
+    public static double fractionBefore(DataframePlan plan, int index) {
+        double fraction = 1.0;
+        for(int i = 0; i < index; i++) {
+            if(plan.stages.get(i).type.equals("where")) {
+                fraction *= FILTER_SELECTIVITY;
+            }
+        }
+        return fraction;
+    }
+
+    /*
+        Cost of running one stage on a single row
+
+        @param stage is the stage to estimate
+        @return double cost units per row
+     */
+    public static double stageCost(DataframeStage stage) {
+        double cost = stage.type.equals("select") ? stage.columns.size() : 0;
+        Map<SQLExpr, Double> costs = new IdentityHashMap<>();
+        for(SQLExpr column: stage.columns) {
+            cost += exprCost(column, costs);
+        }
+        return cost;
+    }
+
+    /*
+        Average cost per generated range row of the whole pipeline, taking the filters
+        into account
+
+        @param plan is the translated pipeline
+        @return double cost units per range row
+     */
+    public static double costPerRow(DataframePlan plan) {
+        double cost = 0;
+        double fraction = 1.0; // fractionBefore(plan, i), kept up to date as we go
+        for(DataframeStage stage: plan.stages) {
+            cost += fraction * stageCost(stage);
+            if(stage.type.equals("where")) {
+                fraction *= FILTER_SELECTIVITY;
+            }
+        }
+        return cost;
+    }
+
+    /*
+        Counts the operators of an expression by kind (+, -, *, %, comparison, if, cast)
+
+        @param expr is the expression to look at
+        @param counts is updated with the operators found
+     */
+    public static void countOps(SQLExpr expr, Map<String, Integer> counts) {
+        String kind = null;
+        if(expr.type.equals("Op")) {
+            kind = expr.word;
+        } else if(expr.type.equals("Comp")) {
+            kind = "comparison";
+        } else if(expr.type.equals("If")) {
+            kind = "if";
+        } else if(expr.type.equals("Cast")) {
+            kind = "cast";
+        }
+        if(kind != null) {
+            Integer count = counts.get(kind);
+            counts.put(kind, (count == null) ? 1 : count + 1);
+        }
+        for(SQLExpr arg: expr.args) {
+            countOps(arg, counts);
+        }
+    }
+
+    // costs holds the cost of the nodes already seen, a shared node costs as much each time it is used
+    private static double exprCost(SQLExpr expr, Map<SQLExpr, Double> costs) {
+        Double known = costs.get(expr);
+        if(known != null) {
+            return known;
+        }
+        double cost = 0;
+        if(expr.type.equals("Op")) {
+            cost = expr.word.equals("%") ? 4 : 1;
+        } else if(expr.type.equals("Comp") || expr.type.equals("Cast")) {
+            cost = 1;
+        } else if(expr.type.equals("If")) {
+            cost = 2;
+        }
+        for(SQLExpr arg: expr.args) {
+            cost += exprCost(arg, costs);
+        }
+        costs.put(expr, cost);
+        return cost;
+    }
+}
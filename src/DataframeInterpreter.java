@@ -0,0 +1,190 @@
+import java.util.*;
+/*
+    Runs a translated pipeline in the JVM, without Spark
+
+    This is a tree-walking interpreter over the SQLExpr of every stage. It follows Spark's
+    rules rather than Scala's: every node is computed in the type WidthInference.typeOf gives
+    it and wraps around on overflow in that type, and casts truncate. Spark returns null for
+    % by zero, which is reported as a failure since the RDD program would throw instead.
+
+    @author Jonathan Gill
+ */
+public class DataframeInterpreter {
+
+    // a node of a stage expression with its column and result type worked out
+    private static class Node {
+        String type;
+        String word;
+        Node[] args;
+        int column;
+        long value;
+        String valueType;
+    }
+
+    /*
+        Runs the plan over its whole range
+
+        @param plan is the translated pipeline
+        @return PipelineResult what the action returns
+     */
+    public static PipelineResult run(DataframePlan plan) {
+        PipelineResult result = new PipelineResult();
+        List<Node[]> stages;
+        try {
+            stages = compile(plan);
+        } catch(IllegalArgumentException e) {
+            result.error = "unsupported expression: " + e.getMessage();
+            return result;
+        }
+        long count = 0;
+        long total = 0;
+        long best = 0;
+        try {
+            for(long id = plan.start; id < plan.end; id++) {
+                long[] row = {id};
+                boolean keep = true;
+                for(int i = 0; i < stages.size() && keep; i++) {
+                    Node[] columns = stages.get(i);
+                    if(plan.stages.get(i).type.equals("where")) {
+                        keep = eval(columns[0], row) != 0;
+                    } else {
+                        long[] next = new long[columns.length];
+                        for(int c = 0; c < columns.length; c++) {
+                            next[c] = eval(columns[c], row);
+                        }
+                        row = next;
+                    }
+                }
+                if(!keep) {
+                    continue;
+                }
+                if(plan.terminal.equals("collect")) {
+                    result.add(row);
+                } else if("max".equals(plan.aggregate)) {
+                    best = (count == 0) ? row[0] : Math.max(best, row[0]);
+                } else if("min".equals(plan.aggregate)) {
+                    best = (count == 0) ? row[0] : Math.min(best, row[0]);
+                } else {
+                    total += row[0];
+                }
+                count++;
+            }
+        } catch(ArithmeticException e) {
+            result.error = "null from % by zero";
+            return result;
+        }
+
+        if(plan.terminal.equals("count")) {
+            result.scalar = "" + count;
+        } else if(plan.terminal.equals("sum")) {
+            result.scalar = "" + (double) total;
+        } else if(!plan.terminal.equals("collect")) {
+            if(count == 0) { // the aggregate is null and reading it fails
+                result.error = "empty collection";
+            } else {
+                result.scalar = "" + (plan.aggregate.equals("sum") ? total : best);
+            }
+        }
+        return result;
+    }
+
+    /*
+        Resolves the columns and types of every stage
+
+        @param plan is the translated pipeline
+        @return List<Node[]> the compiled expressions of each stage
+     */
+    private static List<Node[]> compile(DataframePlan plan) {
+        List<Node[]> stages = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        Map<String, String> types = new HashMap<>();
+        names.add("id");
+        types.put("id", "bigint");
+        for(DataframeStage stage: plan.stages) {
+            Node[] columns = new Node[stage.columns.size()];
+            for(int i = 0; i < columns.length; i++) {
+                columns[i] = compile(stage.columns.get(i), names, types);
+            }
+            stages.add(columns);
+            if(stage.type.equals("select")) {
+                Map<String, String> newTypes = new HashMap<>();
+                for(int i = 0; i < columns.length; i++) {
+                    newTypes.put(stage.names.get(i), columns[i].valueType);
+                }
+                names = stage.names;
+                types = newTypes;
+            }
+        }
+        return stages;
+    }
+
+    private static Node compile(SQLExpr expr, List<String> names, Map<String, String> types) {
+        Node node = new Node();
+        node.type = expr.type;
+        node.word = expr.word;
+        node.valueType = WidthInference.typeOf(expr, types);
+        node.args = new Node[expr.args.length];
+        for(int i = 0; i < node.args.length; i++) {
+            node.args[i] = compile(expr.args[i], names, types);
+        }
+        if(expr.type.equals("Column")) {
+            node.column = names.indexOf(expr.word);
+            if(node.column < 0) {
+                throw new IllegalArgumentException("Unknown column " + expr.word);
+            }
+        } else if(expr.type.equals("Number")) {
+            node.value = Long.parseLong(expr.word);
+        }
+        return node;
+    }
+
+    /*
+        Evaluates a node on one row
+
+        @param node is the node to evaluate
+        @param row holds the values of the input columns
+        @return long the value, 1 or 0 for comparisons
+     */
+    private static long eval(Node node, long[] row) {
+        if(node.type.equals("Column")) {
+            return row[node.column];
+        } else if(node.type.equals("Number")) {
+            return node.value;
+        } else if(node.type.equals("Cast")) {
+            return WidthInference.wrap(eval(node.args[0], row), node.word);
+        } else if(node.type.equals("If")) {
+            return (eval(node.args[0], row) != 0) ? eval(node.args[1], row) : eval(node.args[2], row);
+        }
+
+        long a = eval(node.args[0], row);
+        long b = eval(node.args[1], row);
+        if(node.type.equals("Comp")) {
+            boolean test;
+            if(node.word.equals("==")) {
+                test = a == b;
+            } else if(node.word.equals("!=")) {
+                test = a != b;
+            } else if(node.word.equals("<")) {
+                test = a < b;
+            } else if(node.word.equals(">")) {
+                test = a > b;
+            } else if(node.word.equals("<=")) {
+                test = a <= b;
+            } else {
+                test = a >= b;
+            }
+            return test ? 1 : 0;
+        }
+        long value;
+        if(node.word.equals("+")) {
+            value = a + b;
+        } else if(node.word.equals("-")) {
+            value = a - b;
+        } else if(node.word.equals("*")) {
+            value = a * b;
+        } else {
+            value = a % b;
+        }
+        return WidthInference.wrap(value, node.valueType);
+    }
+}
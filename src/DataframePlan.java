@@ -0,0 +1,108 @@
+import java.util.*;
+/*
+    The translated form of one sc.range(...) pipeline
+
+    The parser fills in the plan while it reads the RDD program. The first stage is always
+    the projection that renames the range's id column to _1. terminal is the RDD action that
+    ends the pipeline (collect, count, sum, max, min or reduce). For sum, max, min and reduce,
+    aggregate names the SQL aggregate function that computes it on the cluster. When
+    numPartitions is set the range is emitted with the four argument form of spark.range.
+
+    @author Jonathan Gill
+ */
+public class DataframePlan {
+    public long start;
+    public long end;
+    public int numPartitions;
+    public List<DataframeStage> stages;
+    public String terminal;
+    public String aggregate;
+
+    public DataframePlan() {
+        stages = new ArrayList<>();
+        terminal = "collect";
+    }
+
+    /*
+        Checks to see if every stage after the initial projection is a filter, meaning
+        the pipeline still works on the raw range value
+
+        @return boolean indicating if _1 is still the range id
+     */
+    public boolean onRawRange() {
+        for(int i = 1; i < stages.size(); i++) {
+            if(!stages.get(i).type.equals("where")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+        Prints the plan as scala code using the Dataframe API
+
+        @return String the output program text
+     */
+    public String toScala() {
+        return toScala(rangeScala(), 0);
+    }
+
+    /*
+        Prints the part of the plan that follows a Dataframe computed elsewhere
+
+        @param source is the scala text of the Dataframe the stages continue from
+        @param from is the index of the first stage to print
+        @return String the output program text
+     */
+    public String toScala(String source, int from) {
+        String text = source + stagesScala(from, stages.size());
+        if(from == stages.size()) {
+            return text + "." + terminalScala();
+        }
+        return text + "\n     ." + terminalScala();
+    }
+
+    /*
+        Prints the range that starts the pipeline
+
+        @return String scala text of spark.range
+     */
+    public String rangeScala() {
+        if(numPartitions > 0) {
+            return "spark.range(" + start + "," + end + ",1," + numPartitions + ")";
+        }
+        return "spark.range(" + start + "," + end + ")";
+    }
+
+    /*
+        Prints the stages from index from up to to, the first one joined to the text before
+        it and the others on their own lines
+
+        @return String scala text of the stages
+     */
+    public String stagesScala(int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for(int i = from; i < to; i++) {
+            if(i > from) {
+                text.append("\n     ");
+            }
+            text.append('.').append(stages.get(i).toScala());
+        }
+        return text.toString();
+    }
+
+    /*
+        Prints the action that ends the pipeline. Reductions are done with a SQL aggregate
+        so only the scalar result comes back to the driver.
+
+        @return String scala text of the action
+     */
+    private String terminalScala() {
+        if(terminal.equals("sum")) { // RDD.sum() is a Double, and 0 for an empty RDD
+            return "selectExpr(\"coalesce(sum(_1),0)\").first().getAs[Number](0).doubleValue";
+        } else if(aggregate != null) {
+            return "selectExpr(\"" + aggregate + "(_1)\").first().getAs[Number](0).longValue";
+        }
+        return terminal + "()";
+    }
+}
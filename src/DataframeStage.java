@@ -0,0 +1,42 @@
+import java.util.*;
+/*
+    One step of a translated pipeline
+
+    Possible stage types are:
+        select      a selectExpr projection, columns[i] is emitted "as" names[i]
+        where       a filter, columns holds the single predicate and source the RDD filter
+                    it was translated from
+
+    @author Jonathan Gill
+ */
+public class DataframeStage {
+    public String type;
+    public List<SQLExpr> columns;
+    public List<String> names;
+    public RDDStage source;
+
+    public DataframeStage(String type) {
+        this.type = type;
+        this.columns = new ArrayList<>();
+        this.names = new ArrayList<>();
+    }
+
+    /*
+        Prints the stage as a call on a Dataframe
+
+        @return String scala text of the stage
+     */
+    public String toScala() {
+        if(type.equals("where")) {
+            return "where(\"" + columns.get(0) + "\")";
+        }
+        StringBuilder text = new StringBuilder("selectExpr(");
+        for(int i = 0; i < columns.size(); i++) {
+            if(i > 0) {
+                text.append(", ");
+            }
+            text.append('"').append(columns.get(i)).append(" as ").append(names.get(i)).append('"');
+        }
+        return text.append(')').toString();
+    }
+}
@@ -0,0 +1,346 @@
+import java.util.*;
+/*
+    Keeps every emitted stage inside Spark's code generation limits
+
+    Whole-stage code generation puts all the expressions of a projection into one generated
+    method. When that method gets past the JVM's 64KB limit, or the expressions nest too
+    deeply, Spark quietly falls back to interpreting the stage, which is many times slower.
+    Machine-generated UDFs with long if chains or long arithmetic get there easily.
+
+    This pass measures each stage by the number of nodes of its expressions (a stand-in for
+    the size of the generated code) and their depth. A stage over maxStageNodes or maxDepth
+    is split: working up from the leaves, whenever a subtree gets too big its biggest operands
+    are moved into intermediate columns _s1, _s2, ... that are computed by projections placed
+    before the stage. Intermediate columns that only depend on the stage's inputs go in the
+    first of those projections, the ones that read other intermediate columns in later ones,
+    and no projection gets more than maxStageNodes nodes or maxFields columns if it can be
+    helped. Columns still needed further on are passed through. A split where is followed by
+    a projection that drops the intermediate columns again, so the rows are unchanged.
+    A subtree that is moved out more than once gets a single intermediate column, which
+    every place it appeared reads. Expressions are DAGs whose shared nodes print once for every
+    place they are used, so sizes are counted as printed but every walk keeps what it found for
+    each node by identity and visits a shared node once: the sizes and depths once per plan,
+    the reduced form of a node once per stage.
+
+    An operand is never moved out of an if branch when it contains a % by anything but a
+    nonzero literal, since computing it for every row could divide by zero on rows where the
+    branch is not taken. That does not apply to a node the stage also uses outside every
+    branch (in a condition, say), since it is computed for every row anyway.
+
+    @author Jonathan Gill
+ */
+public class ExpressionSplitter {
+    public static int maxStageNodes = 256;
+    public static int maxDepth = 32;
+    // spark.sql.codegen.maxFields, wider rows are not code generated
+    public static int maxFields = 100;
+
+    private int count; // intermediate columns made so far in this plan
+    private List<Piece> pieces;
+    private Map<String, Piece> byName;
+    private Map<SQLExpr, SQLExpr> extracted; // each subtree moved out and the column that replaces it
+    private Map<SQLExpr, SQLExpr> reduced; // each node reduced outside an if branch and the result
+    private Map<SQLExpr, SQLExpr> reducedGuarded; // the same inside a branch
+    private Map<SQLExpr, Boolean> unsafeMods = new IdentityHashMap<>();
+    private Set<SQLExpr> unguarded; // the nodes of the stage computed for every row
+    private Map<SQLExpr, Long> sizes = new IdentityHashMap<>(); // nodes of each subtree, as printed
+    private Map<SQLExpr, Integer> depths = new IdentityHashMap<>();
+
+    // an intermediate column
+    private static class Piece {
+        String name;
+        SQLExpr expr;
+        int level; // the projection it can be computed in, counted from the first
+        long nodes;
+    }
+
+    /*
+        Splits the oversized stages of a plan
+
+        @param plan is the plan to rewrite
+        @return boolean true if some stage was split
+     */
+    public static boolean apply(DataframePlan plan) {
+        ExpressionSplitter splitter = new ExpressionSplitter();
+        boolean changed = false;
+        List<DataframeStage> stages = new ArrayList<>();
+        List<String> names = Collections.singletonList("id");
+        for(DataframeStage stage: plan.stages) {
+            if(splitter.fits(stage.columns)) {
+                stages.add(stage);
+            } else {
+                stages.addAll(splitter.split(stage, names));
+                changed = true;
+            }
+            if(stage.type.equals("select")) {
+                names = stage.names;
+            }
+        }
+        plan.stages = stages;
+        return changed;
+    }
+
+    private boolean fits(List<SQLExpr> columns) {
+        long nodes = 0;
+        for(SQLExpr column: columns) {
+            if(depth(column) > maxDepth) {
+                return false;
+            }
+            nodes += nodes(column);
+        }
+        return nodes <= maxStageNodes;
+    }
+
+    /*
+        Splits one stage
+
+        @param stage is the stage to split
+        @param inputs are the columns the stage reads from
+        @return List<DataframeStage> the projections that compute the intermediate columns,
+        the stage itself and, for a where, the projection that drops them
+     */
+    private List<DataframeStage> split(DataframeStage stage, List<String> inputs) {
+        pieces = new ArrayList<>();
+        byName = new HashMap<>();
+        extracted = new IdentityHashMap<>();
+        reduced = new IdentityHashMap<>();
+        reducedGuarded = new IdentityHashMap<>();
+        unguarded = Collections.newSetFromMap(new IdentityHashMap<SQLExpr, Boolean>());
+        for(SQLExpr column: stage.columns) {
+            findUnguarded(column);
+        }
+        List<SQLExpr> finals = new ArrayList<>();
+        for(SQLExpr column: stage.columns) {
+            finals.add(reduce(column, false));
+        }
+        if(!fits(finals)) { // many columns that are each small enough
+            for(int i = 0; i < finals.size(); i++) {
+                if(!isLeaf(finals.get(i))) {
+                    finals.set(i, extract(finals.get(i)));
+                }
+            }
+        }
+
+        // put the intermediate columns of each level in as few projections as the limits allow
+        List<List<Piece>> batches = new ArrayList<>();
+        int perBatch = Math.max(1, maxFields - inputs.size());
+        for(int level = 0; ; level++) {
+            List<Piece> batch = new ArrayList<>();
+            long nodes = 0;
+            boolean found = false;
+            for(Piece piece: pieces) {
+                if(piece.level != level) {
+                    continue;
+                }
+                found = true;
+                if(!batch.isEmpty() && (nodes + piece.nodes > maxStageNodes || batch.size() >= perBatch)) {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                    nodes = 0;
+                }
+                batch.add(piece);
+                nodes += piece.nodes;
+            }
+            if(!found) {
+                break;
+            }
+            batches.add(batch);
+        }
+
+        List<DataframeStage> stages = new ArrayList<>();
+        List<String> available = new ArrayList<>(inputs);
+        for(int b = 0; b < batches.size(); b++) {
+            // what the projections after this one and the stage itself read
+            Set<String> needed = new HashSet<>();
+            Set<SQLExpr> seen = Collections.newSetFromMap(new IdentityHashMap<SQLExpr, Boolean>());
+            for(int later = b + 1; later < batches.size(); later++) {
+                for(Piece piece: batches.get(later)) {
+                    columnsOf(piece.expr, needed, seen);
+                }
+            }
+            for(SQLExpr column: finals) {
+                columnsOf(column, needed, seen);
+            }
+            if(stage.type.equals("where")) { // the rows keep all their columns
+                needed.addAll(inputs);
+            }
+
+            DataframeStage projection = new DataframeStage("select");
+            for(String name: available) {
+                if(needed.contains(name)) {
+                    projection.columns.add(SQLExpr.make("Column", name));
+                    projection.names.add(name);
+                }
+            }
+            for(Piece piece: batches.get(b)) {
+                projection.columns.add(piece.expr);
+                projection.names.add(piece.name);
+            }
+            stages.add(projection);
+            available = projection.names;
+        }
+
+        DataframeStage last = new DataframeStage(stage.type);
+        last.columns.addAll(finals);
+        last.names.addAll(stage.names);
+        stages.add(last);
+        if(stage.type.equals("where")) {
+            DataframeStage drop = new DataframeStage("select");
+            for(String name: inputs) {
+                drop.columns.add(SQLExpr.make("Column", name));
+                drop.names.add(name);
+            }
+            stages.add(drop);
+        }
+        return stages;
+    }
+
+    /*
+        Rebuilds an expression from the leaves up, moving operands into intermediate columns
+        whenever a subtree goes over the limits
+
+        @param expr is the expression to reduce
+        @param guarded is true inside the branch of an if
+        @return SQLExpr the expression that is left
+     */
+    private SQLExpr reduce(SQLExpr expr, boolean guarded) {
+        if(isLeaf(expr)) {
+            return expr;
+        }
+        guarded &= !unguarded.contains(expr); // computed for every row, whatever branch it is in
+        Map<SQLExpr, SQLExpr> done = guarded ? reducedGuarded : reduced;
+        SQLExpr result = done.get(expr);
+        if(result == null) {
+            result = reduceNode(expr, guarded);
+            done.put(expr, result);
+        }
+        return result;
+    }
+
+    private SQLExpr reduceNode(SQLExpr expr, boolean guarded) {
+        SQLExpr[] args = new SQLExpr[expr.args.length];
+        boolean[] branch = new boolean[args.length];
+        for(int i = 0; i < args.length; i++) {
+            branch[i] = guarded || (expr.type.equals("If") && i > 0);
+            args[i] = reduce(expr.args[i], branch[i]);
+        }
+        SQLExpr node = expr.with(args);
+        // move out the biggest operand (the deepest one if the depth is the problem) until it fits
+        while(nodes(node) > maxStageNodes || depth(node) > maxDepth) {
+            boolean tooDeep = depth(node) > maxDepth;
+            int biggest = -1;
+            for(int i = 0; i < args.length; i++) {
+                if(isLeaf(args[i]) || (branch[i] && !unguarded.contains(expr.args[i]) && hasUnsafeMod(args[i]))) {
+                    continue;
+                }
+                if(biggest < 0 || (tooDeep ? depth(args[i]) > depth(args[biggest]) : nodes(args[i]) > nodes(args[biggest]))) {
+                    biggest = i;
+                }
+            }
+            if(biggest < 0) {
+                break;
+            }
+            args[biggest] = extract(args[biggest]);
+            node = expr.with(args);
+        }
+        return node;
+    }
+
+    /*
+        Moves an expression into an intermediate column, a new one unless it was moved out before
+
+        @return SQLExpr the column that replaces it
+     */
+    private SQLExpr extract(SQLExpr expr) {
+        SQLExpr column = extracted.get(expr);
+        if(column != null) {
+            return column;
+        }
+        Piece piece = new Piece();
+        piece.name = "_s" + (++count);
+        piece.expr = expr;
+        piece.nodes = nodes(expr);
+        Set<String> reads = new HashSet<>();
+        columnsOf(expr, reads, Collections.newSetFromMap(new IdentityHashMap<SQLExpr, Boolean>()));
+        for(String name: reads) {
+            Piece other = byName.get(name);
+            if(other != null) {
+                piece.level = Math.max(piece.level, other.level + 1);
+            }
+        }
+        pieces.add(piece);
+        byName.put(piece.name, piece);
+        column = SQLExpr.make("Column", piece.name);
+        extracted.put(expr, column);
+        return column;
+    }
+
+    private static boolean isLeaf(SQLExpr expr) {
+        return expr.type.equals("Column") || expr.type.equals("Number");
+    }
+
+    // the number of nodes of the printed expression, at most Integer.MAX_VALUE
+    private long nodes(SQLExpr expr) {
+        Long nodes = sizes.get(expr);
+        if(nodes == null) {
+            long sum = 1;
+            for(SQLExpr arg: expr.args) {
+                sum = Math.min(sum + nodes(arg), Integer.MAX_VALUE);
+            }
+            nodes = sum;
+            sizes.put(expr, nodes);
+        }
+        return nodes;
+    }
+
+    private int depth(SQLExpr expr) {
+        Integer depth = depths.get(expr);
+        if(depth == null) {
+            int max = 0;
+            for(SQLExpr arg: expr.args) {
+                max = Math.max(max, depth(arg));
+            }
+            depth = max + 1;
+            depths.put(expr, depth);
+        }
+        return depth;
+    }
+
+    // adds the nodes reached without going into the branch of an if
+    private void findUnguarded(SQLExpr expr) {
+        if(!unguarded.add(expr)) {
+            return;
+        }
+        int count = expr.type.equals("If") ? 1 : expr.args.length;
+        for(int i = 0; i < count; i++) {
+            findUnguarded(expr.args[i]);
+        }
+    }
+
+    // a % that could divide by zero, so one not by a literal other than 0
+    private boolean hasUnsafeMod(SQLExpr expr) {
+        Boolean found = unsafeMods.get(expr);
+        if(found == null) {
+            found = expr.type.equals("Op") && expr.word.equals("%")
+                    && !(expr.args[1].type.equals("Number") && !expr.args[1].word.equals("0"));
+            for(int i = 0; i < expr.args.length && !found; i++) {
+                found = hasUnsafeMod(expr.args[i]);
+            }
+            unsafeMods.put(expr, found);
+        }
+        return found;
+    }
+
+    // seen holds the nodes already visited
+    private static void columnsOf(SQLExpr expr, Set<String> names, Set<SQLExpr> seen) {
+        if(!seen.add(expr)) {
+            return;
+        }
+        if(expr.type.equals("Column")) {
+            names.add(expr.word);
+        }
+        for(SQLExpr arg: expr.args) {
+            columnsOf(arg, names, seen);
+        }
+    }
+}
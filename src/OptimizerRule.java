@@ -0,0 +1,22 @@
+/*
+    A rewrite of a translated pipeline, run by RDDOptimizer
+
+    @author Jonathan Gill
+ */
+public interface OptimizerRule {
+
+    /*
+        The name the rule is reported under and turned on and off with
+
+        @return String the name of the rule
+     */
+    String getName();
+
+    /*
+        Rewrites the plan in place
+
+        @param plan is the plan to rewrite
+        @return boolean true if the plan was changed
+     */
+    boolean apply(DataframePlan plan);
+}
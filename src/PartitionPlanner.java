@@ -0,0 +1,38 @@
+/*
+    Picks the numPartitions argument of the emitted spark.range(start, end, step, numPartitions)
+
+    The number of rows is known when the program is compiled and CostEstimator gives the cost
+    of each row, so the total work of the pipeline can be split into tasks of about
+    targetRowsPerTask unit-cost rows each. A pipeline that fits in one task gets one partition.
+    Bigger ones are rounded up to a whole number of waves over targetCores, and are never given
+    more partitions than rows or than maxPartitions.
+
+    @author Jonathan Gill
+ */
+public class PartitionPlanner {
+    public static int targetCores = 8;
+    public static long targetRowsPerTask = 1000000;
+    public static int maxPartitions = 10000;
+
+    /*
+        Sets plan.numPartitions
+
+        @param plan is the plan to update
+        @return boolean true if numPartitions changed
+     */
+    public static boolean apply(DataframePlan plan) {
+        int before = plan.numPartitions;
+        long rows = CostEstimator.rangeRows(plan);
+        double work = rows * CostEstimator.costPerRow(plan);
+        long tasks = (long) Math.ceil(work / targetRowsPerTask);
+        if(tasks <= 1) {
+            plan.numPartitions = 1;
+        } else {
+            long waves = (tasks + targetCores - 1) / targetCores;
+            tasks = waves * targetCores;
+            tasks = Math.min(tasks, Math.min(rows, maxPartitions));
+            plan.numPartitions = (int) Math.max(1, tasks);
+        }
+        return plan.numPartitions != before;
+    }
+}
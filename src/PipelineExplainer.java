@@ -0,0 +1,224 @@
+import java.util.*;
+/*
+    Prints a static estimate of what a translated pipeline costs, stage by stage, next to the
+    same estimate for the RDD program it came from. Used by the --explain option.
+
+    For every stage it shows the rows that reach it (from the range bounds and the filters,
+    with CostEstimator.FILTER_SELECTIVITY for filters that are not simple bounds), the
+    operators run on each row by kind, and either the objects the RDD allocates per row or
+    the columns the Dataframe projects. The last line of each form estimates the bytes that
+    come back to the driver:
+        RDD         every element is a Java serialized object, about RDD_OBJECT_BYTES per
+                    boxed value or tuple, and reductions send one partial per partition
+        Dataframe   every row is an UnsafeRow, a length, a null bitset and 8 bytes per
+                    column, and aggregates send a single row
+
+    @author Jonathan Gill
+ */
+public class PipelineExplainer {
+    public static final int RDD_OBJECT_BYTES = 14;
+    public static final int UNSAFE_ROW_HEADER_BYTES = 12;
+    private static final String ROW_FORMAT = "  %-34s %,15d   %-40s %s\n";
+
+    /*
+        Builds the explain text for one pipeline
+
+        @param rdd is the input program as it was written
+        @param plan is its translation
+        @return String the report
+     */
+    public static String explain(RDDPipeline rdd, DataframePlan plan) {
+        StringBuilder text = new StringBuilder();
+        long[] rddTotals = explainRDD(rdd, plan, text);
+        long[] planTotals = explainPlan(plan, text);
+        text.append(String.format("Dataframe vs RDD: rows generated %s, operations %s, bytes to driver %s%n",
+                ratio(planTotals[0], rddTotals[0]), ratio(planTotals[1], rddTotals[1]),
+                ratio(planTotals[2], rddTotals[2])));
+        return text.toString();
+    }
+
+    /*
+        Adds the RDD form to the report
+
+        @return long[] {rows generated, total operations, bytes to driver}
+     */
+    private static long[] explainRDD(RDDPipeline rdd, DataframePlan plan, StringBuilder text) {
+        text.append(String.format("RDD form%n  %-34s %15s   %-40s %s%n", "stage", "rows", "ops/row", "objects/row"));
+        double rows = Math.max(0, rdd.end - rdd.start);
+        long generated = (long) rows;
+        text.append(row("sc.range(" + rdd.start + "," + rdd.end + ")", generated, "", 1));
+        long operations = 0;
+        int arity = 1;
+        for(RDDStage stage: rdd.stages) {
+            Map<String, Integer> ops = countOps(stage.tokens);
+            operations += Math.round(rows) * total(ops);
+            int objects = 0;
+            if(stage.type.equals("map")) {
+                arity = tupleArity(stage.tokens);
+                objects = (arity == 1) ? 1 : arity + 1;
+            }
+            text.append(row(stage.type, Math.round(rows), format(ops), objects));
+            if(stage.type.equals("filter")) {
+                rows = stage.folded ? stage.rowsAfter : rows * CostEstimator.FILTER_SELECTIVITY;
+            }
+        }
+
+        long bytes;
+        if(rdd.action.type.equals("collect")) {
+            int objects = (arity == 1) ? 1 : arity + 1;
+            bytes = Math.round(rows) * objects * RDD_OBJECT_BYTES;
+        } else { // one partial result per partition
+            bytes = (long) PartitionPlanner.targetCores * RDD_OBJECT_BYTES;
+        }
+        Map<String, Integer> ops = countOps(rdd.action.tokens);
+        operations += Math.round(rows) * total(ops);
+        text.append(row(rdd.action.type, Math.round(rows), format(ops), ""));
+        text.append(String.format("  rows generated %,d, operations %,d, bytes to driver %,d%n",
+                generated, operations, bytes));
+        return new long[]{generated, operations, bytes};
+    }
+
+    /*
+        Adds the Dataframe form to the report
+
+        @return long[] {rows generated, total operations, bytes to driver}
+     */
+    private static long[] explainPlan(DataframePlan plan, StringBuilder text) {
+        text.append(String.format("Dataframe form%n  %-34s %15s   %-40s %s%n", "stage", "rows", "ops/row", "projections"));
+        long generated = CostEstimator.rangeRows(plan);
+        text.append(row(plan.rangeScala(), generated, "", ""));
+        long operations = 0;
+        int columns = 1;
+        for(int i = 0; i < plan.stages.size(); i++) {
+            DataframeStage stage = plan.stages.get(i);
+            long rows = Math.round(generated * CostEstimator.fractionBefore(plan, i));
+            Map<String, Integer> ops = new TreeMap<>();
+            for(SQLExpr column: stage.columns) {
+                CostEstimator.countOps(column, ops);
+            }
+            operations += rows * total(ops);
+            int projections = 0;
+            if(stage.type.equals("select")) {
+                columns = stage.columns.size();
+                projections = columns;
+            }
+            text.append(row(stage.type.equals("select") ? "selectExpr" : "where",
+                    rows, format(ops), projections));
+        }
+
+        long rows = Math.round(generated * CostEstimator.fractionBefore(plan, plan.stages.size()));
+        long bytes;
+        if(plan.terminal.equals("collect")) {
+            bytes = rows * (UNSAFE_ROW_HEADER_BYTES + 8 * columns);
+        } else { // a single row with the aggregate
+            bytes = UNSAFE_ROW_HEADER_BYTES + 8;
+        }
+        String action = (plan.aggregate != null) ? plan.aggregate + "(_1)" : plan.terminal;
+        text.append(row(action, rows, "", ""));
+        text.append(String.format("  rows generated %,d, operations %,d, bytes to driver %,d%n",
+                generated, operations, bytes));
+        return new long[]{generated, operations, bytes};
+    }
+
+    /*
+        Counts the operators in the tokens of an RDD function by kind, using the same
+        kinds as CostEstimator.countOps
+
+        @param tokens is the function as written
+        @return Map<String, Integer> kind to count
+     */
+    private static Map<String, Integer> countOps(List<SimpleToken> tokens) {
+        Map<String, Integer> ops = new TreeMap<>();
+        for(SimpleToken token: tokens) {
+            String kind = null;
+            if(token.word.equals("+") || token.word.equals("-") || token.word.equals("*") || token.word.equals("%")) {
+                kind = token.word;
+            } else if(token.word.equals("==") || token.word.equals("!=") || token.word.equals("<")
+                    || token.word.equals(">") || token.word.equals("<=") || token.word.equals(">=")) {
+                kind = "comparison";
+            } else if(token.word.equals("if")) {
+                kind = "if";
+            }
+            if(kind != null) {
+                Integer count = ops.get(kind);
+                ops.put(kind, (count == null) ? 1 : count + 1);
+            }
+        }
+        return ops;
+    }
+
+    /*
+        Finds how many values the function of a map returns
+
+        @param tokens is the function as written
+        @return int 1 for a single value, otherwise the size of the tuple
+     */
+    private static int tupleArity(List<SimpleToken> tokens) {
+        // the value is the expression after the last ; of a block, or the whole body
+        int begin = 0;
+        while(begin < tokens.size() && !tokens.get(begin).word.equals("=>")) {
+            begin++;
+        }
+        begin++;
+        int depth = 0;
+        for(int i = begin; i < tokens.size(); i++) {
+            String word = tokens.get(i).word;
+            if(word.equals("{") || word.equals("(")) {
+                depth++;
+            } else if(word.equals("}") || word.equals(")")) {
+                depth--;
+            } else if(word.equals(";") && depth == 1) {
+                begin = i + 1;
+            }
+        }
+        if(begin < tokens.size() && tokens.get(begin).word.equals("{")) {
+            begin++;
+        }
+        if(begin >= tokens.size() || !tokens.get(begin).word.equals("(")) {
+            return 1;
+        }
+        int commas = 0;
+        depth = 0;
+        for(int i = begin; i < tokens.size(); i++) {
+            String word = tokens.get(i).word;
+            if(word.equals("(")) {
+                depth++;
+            } else if(word.equals(")")) {
+                depth--;
+                if(depth == 0) {
+                    break;
+                }
+            } else if(word.equals(",") && depth == 1) {
+                commas++;
+            }
+        }
+        return commas + 1;
+    }
+
+    private static String row(String stage, long rows, String ops, Object last) {
+        return String.format(ROW_FORMAT, stage, rows, ops, last).replaceAll(" +\n", "\n");
+    }
+
+    private static int total(Map<String, Integer> ops) {
+        int total = 0;
+        for(int count: ops.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static String format(Map<String, Integer> ops) {
+        String text = "";
+        for(Map.Entry<String, Integer> entry: ops.entrySet()) {
+            text += (text.isEmpty() ? "" : " ") + entry.getKey() + ":" + entry.getValue();
+        }
+        return text;
+    }
+
+    private static String ratio(long ours, long theirs) {
+        if(theirs == 0) {
+            return (ours == 0) ? "x1.00" : "n/a";
+        }
+        return String.format("x%.2f", (double) ours / theirs);
+    }
+}
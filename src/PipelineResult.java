@@ -0,0 +1,162 @@
+import java.util.*;
+/*
+    The result of evaluating a pipeline outside of Spark
+
+    Collected rows are kept as a count, an order sensitive checksum and the first sampleLimit
+    rows, so large ranges can be compared without keeping every row in memory. Actions that
+    return a single value keep it in scalar. If the program would fail at run time, error
+    holds the reason instead.
+
+    @author Jonathan Gill
+ */
+public class PipelineResult {
+    public static int sampleLimit = 1000;
+    // odd multiplier of the running checksum, checksum = checksum * CHECKSUM_BASE + hash(row)
+    public static final long CHECKSUM_BASE = 0x9E3779B97F4A7C15L;
+
+    public long rows;
+    public long checksum;
+    public List<long[]> sample;
+    public String scalar;
+    public String error;
+
+    public PipelineResult() {
+        sample = new ArrayList<>();
+    }
+
+    /*
+        Adds the next collected row
+
+        @param row holds the value of each column
+     */
+    public void add(long[] row) {
+        rows++;
+        checksum = checksum * CHECKSUM_BASE + hash(row);
+        if(sample.size() < sampleLimit) {
+            sample.add(row);
+        }
+    }
+
+    /*
+        Adds n rows stored as columns, columns[c][i] is column c of row i
+
+        @param columns holds the values of each column
+        @param n is the number of rows
+     */
+    public void addColumns(long[][] columns, int n) {
+        for(int i = 0; i < n; i++) {
+            long hash = columns.length;
+            for(long[] column: columns) {
+                hash = hash * 1000003 ^ column[i];
+            }
+            checksum = checksum * CHECKSUM_BASE + hash;
+            if(sample.size() < sampleLimit) {
+                long[] row = new long[columns.length];
+                for(int c = 0; c < row.length; c++) {
+                    row[c] = columns[c][i];
+                }
+                sample.add(row);
+            }
+        }
+        rows += n;
+    }
+
+    /*
+        Adds the rows of a result that directly follows this one, so the rows of a range
+        can be collected in pieces and put together
+
+        @param next holds the rows that come after ours
+     */
+    public void append(PipelineResult next) {
+        // checksum * CHECKSUM_BASE^next.rows, by squaring
+        long factor = 1;
+        long base = CHECKSUM_BASE;
+        for(long e = next.rows; e > 0; e >>= 1) {
+            if((e & 1) != 0) {
+                factor *= base;
+            }
+            base *= base;
+        }
+        checksum = checksum * factor + next.checksum;
+        rows += next.rows;
+        for(long[] row: next.sample) {
+            if(sample.size() >= sampleLimit) {
+                break;
+            }
+            sample.add(row);
+        }
+    }
+
+    /*
+        Compares two results
+
+        @param other is the result to compare against
+        @return String description of the first difference, or null if they are the same
+     */
+    public String difference(PipelineResult other) {
+        if(error != null || other.error != null) {
+            if(error != null && error.equals(other.error)) {
+                return null;
+            }
+            return "failure " + error + " vs " + other.error;
+        }
+        if(scalar != null || other.scalar != null) {
+            if(sameNumber(scalar, other.scalar)) {
+                return null;
+            }
+            return "result " + scalar + " vs " + other.scalar;
+        }
+        for(int i = 0; i < Math.min(sample.size(), other.sample.size()); i++) {
+            if(!Arrays.equals(sample.get(i), other.sample.get(i))) {
+                return "row " + i + " is " + Arrays.toString(sample.get(i)) + " vs " + Arrays.toString(other.sample.get(i));
+            }
+        }
+        if(rows != other.rows) {
+            return rows + " rows vs " + other.rows + " rows";
+        }
+        if(checksum != other.checksum) {
+            return "rows after the first " + sample.size() + " differ (checksum)";
+        }
+        return null;
+    }
+
+    /*
+        Prints the result for the terminal
+
+        @return String a short summary
+     */
+    @Override
+    public String toString() {
+        if(error != null) {
+            return "fails with " + error;
+        } else if(scalar != null) {
+            return scalar;
+        }
+        return rows + " rows, checksum " + Long.toHexString(checksum);
+    }
+
+    public static long hash(long[] row) {
+        long hash = row.length;
+        for(long value: row) {
+            hash = hash * 1000003 ^ value;
+        }
+        return hash;
+    }
+
+    // sums are doubles in the RDD API, so allow for rounding
+    private static boolean sameNumber(String a, String b) {
+        if(a == null || b == null) {
+            return a == b;
+        }
+        if(a.equals(b)) {
+            return true;
+        }
+        try {
+            double x = Double.parseDouble(a);
+            double y = Double.parseDouble(b);
+            return Math.abs(x - y) <= 1e-12 * Math.max(Math.abs(x), Math.abs(y));
+        } catch(NumberFormatException e) {
+            return false;
+        }
+    }
+}
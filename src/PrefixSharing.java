@@ -0,0 +1,136 @@
+import java.util.*;
+/*
+    Prints the pipelines of one file so that work they have in common is done once
+
+    Pipelines share a prefix when they have the same range and the same leading stages. The
+    plans are put in a trie keyed by the range and then by the scala text of each stage, so a
+    node of the trie stands for one prefix and knows the pipelines that start with it. A
+    prefix is computed once and cached when at least two pipelines use it and they go
+    different ways right after it (or one of them ends there); prefixes that only rename the
+    range id are left alone, since reading a cache is no cheaper than spark.range. A shared
+    prefix can itself continue from a shorter one:
+
+        val shared1 = spark.range(0,1000,1,1).selectExpr("cast(id as smallint) as _1")
+             .selectExpr("cast(_1*3 as smallint) as _1")
+             .cache()
+
+        shared1.where("_1%2==0")
+             .collect()
+
+        shared1.count()
+
+    The cached range gets the largest numPartitions any of its pipelines was planned with,
+    and every cache is released after the last pipeline.
+
+    @author Jonathan Gill
+ */
+public class PrefixSharing {
+
+    // a prefix, made of the range and the first depth stages
+    private static class Prefix {
+        int depth;
+        Prefix parent;
+        Map<String, Prefix> next = new LinkedHashMap<>();
+        List<DataframePlan> plans = new ArrayList<>();
+        String name; // set when the prefix is cached
+    }
+
+    /*
+        Prints every plan, with the shared prefixes cached
+
+        @param plans are the pipelines of one file in input order
+        @return String the output program text
+     */
+    public static String toScala(List<DataframePlan> plans) {
+        Map<String, Prefix> ranges = new LinkedHashMap<>();
+        Map<DataframePlan, Prefix> ends = new HashMap<>();
+        for(DataframePlan plan: plans) {
+            String key = plan.start + "," + plan.end;
+            Prefix prefix = ranges.get(key);
+            if(prefix == null) {
+                prefix = new Prefix();
+                ranges.put(key, prefix);
+            }
+            prefix.plans.add(plan);
+            for(DataframeStage stage: plan.stages) {
+                Prefix child = prefix.next.get(stage.toScala());
+                if(child == null) {
+                    child = new Prefix();
+                    child.depth = prefix.depth + 1;
+                    child.parent = prefix;
+                    prefix.next.put(stage.toScala(), child);
+                }
+                child.plans.add(plan);
+                prefix = child;
+            }
+            ends.put(plan, prefix);
+        }
+
+        List<Prefix> shared = new ArrayList<>();
+        for(Prefix range: ranges.values()) {
+            name(range, shared);
+        }
+
+        String text = "";
+        for(Prefix prefix: shared) {
+            Prefix from = cachedAncestor(prefix);
+            DataframePlan plan = prefix.plans.get(0);
+            String source = (from == null) ? widestRange(prefix.plans) : from.name;
+            text += "val " + prefix.name + " = " + source
+                    + plan.stagesScala((from == null) ? 0 : from.depth, prefix.depth)
+                    + "\n     .cache()\n\n";
+        }
+        for(DataframePlan plan: plans) {
+            Prefix end = ends.get(plan);
+            Prefix from = (end.name != null) ? end : cachedAncestor(end);
+            text += ((from == null) ? plan.toScala() : plan.toScala(from.name, from.depth)) + "\n\n";
+        }
+        for(int i = shared.size() - 1; i >= 0; i--) {
+            text += shared.get(i).name + ".unpersist()\n";
+        }
+        return text.trim();
+    }
+
+    /*
+        Names the prefixes that are worth caching, parents before children
+
+        @param prefix is the root of the part of the trie to look at
+        @param shared collects the cached prefixes in the order they are defined
+     */
+    private static void name(Prefix prefix, List<Prefix> shared) {
+        boolean diverges = true;
+        for(Prefix child: prefix.next.values()) {
+            diverges &= child.plans.size() < prefix.plans.size();
+        }
+        // depth 1 is only the range with its id renamed
+        if(prefix.depth > 1 && prefix.plans.size() > 1 && diverges) {
+            prefix.name = "shared" + (shared.size() + 1);
+            shared.add(prefix);
+        }
+        for(Prefix child: prefix.next.values()) {
+            name(child, shared);
+        }
+    }
+
+    private static Prefix cachedAncestor(Prefix prefix) {
+        for(Prefix p = prefix.parent; p != null; p = p.parent) {
+            if(p.name != null) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    // the range of a shared prefix is planned for the most demanding of its pipelines
+    private static String widestRange(List<DataframePlan> plans) {
+        DataframePlan plan = plans.get(0);
+        int numPartitions = 0;
+        for(DataframePlan p: plans) {
+            numPartitions = Math.max(numPartitions, p.numPartitions);
+        }
+        if(numPartitions > 0) {
+            return "spark.range(" + plan.start + "," + plan.end + ",1," + numPartitions + ")";
+        }
+        return plan.rangeScala();
+    }
+}
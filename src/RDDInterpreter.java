@@ -0,0 +1,398 @@
+import java.util.*;
+/*
+    Runs the input RDD program in the JVM, without Spark
+
+    The functions passed to map, filter and reduce are read again from the tokens the parser
+    recorded, independently of the translation, and evaluated with Scala semantics: range
+    elements are Longs, literals are Ints (so arithmetic on literals alone wraps at 32 bits),
+    tuples are read with ._1, ._2, ..., and % by zero throws. Comparing the result with
+    DataframeInterpreter checks a translation in milliseconds.
+
+    Supported function bodies:
+    <Body>          ::= {val <identifier> = <Expr>; ... <Expr>} | <Expr>
+    <Expr>          ::= if(<Expr>) <Expr> else <Expr> | <Sum> [<Comp> <Sum>]
+    <Sum>           ::= <Product> {(+|-) <Product>}
+    <Product>       ::= <Atom> {(*|%) <Atom>}
+    <Atom>          ::= <number> | <identifier> | <identifier>.<identifier>
+                      | (<Expr>, ...) | math.max(<Expr>,<Expr>) | math.min(<Expr>,<Expr>)
+
+    @author Jonathan Gill
+ */
+public class RDDInterpreter {
+    private List<SimpleToken> tokens;
+    private int pos;
+    private List<String> slots; // names in scope, a name's index is its slot in the environment
+    private List<Boolean> slotIsLong;
+    private int slotCount;
+
+    /*
+        A node of a function body. type is one of Number, Name, Field, Op, Comp, If, Tuple,
+        Block and Call. wide is true when Scala would compute the node as a Long.
+     */
+    private static class Node {
+        String type;
+        String word;
+        Node[] args;
+        long value;
+        int slot;
+        boolean wide;
+
+        Node(String type, String word, boolean wide, Node... args) {
+            this.type = type;
+            this.word = word;
+            this.wide = wide;
+            this.args = args;
+        }
+    }
+
+    // a compiled function, its parameters are in the first slots of the environment
+    private static class Function {
+        Node body;
+        int slots;
+    }
+
+    /*
+        Runs the pipeline over its whole range
+
+        @param rdd is the input program as recorded by the parser
+        @return PipelineResult what the action returns
+     */
+    public static PipelineResult run(RDDPipeline rdd) {
+        PipelineResult result = new PipelineResult();
+        List<Function> functions = new ArrayList<>();
+        Function reduce = null;
+        try {
+            for(RDDStage stage: rdd.stages) {
+                functions.add(compile(stage.tokens));
+            }
+            if(rdd.action.type.equals("reduce")) {
+                reduce = compile(rdd.action.tokens);
+            }
+        } catch(IllegalArgumentException e) {
+            result.error = "unsupported function: " + e.getMessage();
+            return result;
+        }
+
+        String action = rdd.action.type;
+        Object accumulated = null;
+        double sum = 0;
+        long count = 0;
+        try {
+            for(long id = rdd.start; id < rdd.end; id++) {
+                Object element = id;
+                boolean keep = true;
+                for(int i = 0; i < rdd.stages.size() && keep; i++) {
+                    Object value = call(functions.get(i), element, null);
+                    if(rdd.stages.get(i).type.equals("filter")) {
+                        keep = (Long) value != 0;
+                    } else {
+                        element = value;
+                    }
+                }
+                if(!keep) {
+                    continue;
+                }
+                count++;
+                if(action.equals("collect")) {
+                    result.add(toRow(element));
+                } else if(action.equals("sum")) {
+                    sum += (Long) element;
+                } else if(accumulated == null) {
+                    accumulated = element;
+                } else if(action.equals("reduce")) {
+                    accumulated = call(reduce, accumulated, element);
+                } else if(action.equals("max")) {
+                    accumulated = Math.max((Long) accumulated, (Long) element);
+                } else if(action.equals("min")) {
+                    accumulated = Math.min((Long) accumulated, (Long) element);
+                }
+            }
+        } catch(ArithmeticException e) {
+            result.error = "ArithmeticException: " + e.getMessage();
+            return result;
+        } catch(ClassCastException e) {
+            result.error = "type error in a function";
+            return result;
+        }
+
+        if(action.equals("count")) {
+            result.scalar = "" + count;
+        } else if(action.equals("sum")) {
+            result.scalar = "" + sum;
+        } else if(!action.equals("collect")) {
+            if(accumulated == null) {
+                result.error = "empty collection";
+            } else {
+                result.scalar = "" + accumulated;
+            }
+        }
+        return result;
+    }
+
+    private static long[] toRow(Object element) {
+        if(element instanceof long[]) {
+            return (long[]) element;
+        }
+        return new long[]{(Long) element};
+    }
+
+    private static Object call(Function function, Object first, Object second) {
+        Object[] env = new Object[function.slots];
+        env[0] = first;
+        if(second != null) {
+            env[1] = second;
+        }
+        return eval(function.body, env);
+    }
+
+    /*
+        Evaluates a node
+
+        @param node is the node to evaluate
+        @param env holds the value of every slot
+        @return Object a Long, or a long[] for a tuple
+     */
+    private static Object eval(Node node, Object[] env) {
+        if(node.type.equals("Number")) {
+            return node.value;
+        } else if(node.type.equals("Name")) {
+            return env[node.slot];
+        } else if(node.type.equals("Field")) {
+            Object value = env[node.slot];
+            if(!(value instanceof long[]) || node.value >= ((long[]) value).length) {
+                throw new ClassCastException();
+            }
+            return ((long[]) value)[(int) node.value];
+        } else if(node.type.equals("Block")) {
+            for(int i = 0; i < node.args.length - 1; i++) {
+                env[node.args[i].slot] = eval(node.args[i].args[0], env);
+            }
+            return eval(node.args[node.args.length - 1], env);
+        } else if(node.type.equals("Tuple")) {
+            long[] values = new long[node.args.length];
+            for(int i = 0; i < values.length; i++) {
+                values[i] = (Long) eval(node.args[i], env);
+            }
+            return values;
+        } else if(node.type.equals("If")) {
+            if((Long) eval(node.args[0], env) != 0) {
+                return eval(node.args[1], env);
+            }
+            return eval(node.args[2], env);
+        }
+
+        long a = (Long) eval(node.args[0], env);
+        long b = (Long) eval(node.args[1], env);
+        if(node.type.equals("Comp")) {
+            boolean test;
+            if(node.word.equals("==")) {
+                test = a == b;
+            } else if(node.word.equals("!=")) {
+                test = a != b;
+            } else if(node.word.equals("<")) {
+                test = a < b;
+            } else if(node.word.equals(">")) {
+                test = a > b;
+            } else if(node.word.equals("<=")) {
+                test = a <= b;
+            } else {
+                test = a >= b;
+            }
+            return test ? 1L : 0L;
+        } else if(node.type.equals("Call")) {
+            return node.word.equals("max") ? Math.max(a, b) : Math.min(a, b);
+        }
+        long value;
+        if(node.word.equals("+")) {
+            value = a + b;
+        } else if(node.word.equals("-")) {
+            value = a - b;
+        } else if(node.word.equals("*")) {
+            value = a * b;
+        } else {
+            value = a % b; // throws on 0 like the JVM does for Scala
+        }
+        return node.wide ? value : (long) (int) value;
+    }
+
+    /*
+        Reads a function from its tokens
+
+        @param tokens is the function as written, e.g. i => i + 1 or (a, b) => a + b
+        @return Function the compiled function
+     */
+    private static Function compile(List<SimpleToken> tokens) {
+        RDDInterpreter reader = new RDDInterpreter();
+        reader.tokens = tokens;
+        reader.pos = 0;
+        reader.slots = new ArrayList<>();
+        reader.slotIsLong = new ArrayList<>();
+        if(reader.accept("(")) {
+            reader.declare(reader.identifier(), true);
+            reader.expect(",");
+            reader.declare(reader.identifier(), true);
+            reader.expect(")");
+        } else {
+            reader.declare(reader.identifier(), true);
+        }
+        reader.expect("=>");
+        Function function = new Function();
+        function.body = reader.body();
+        if(reader.pos != tokens.size()) {
+            throw new IllegalArgumentException("unexpected " + reader.peek());
+        }
+        function.slots = reader.slotCount;
+        return function;
+    }
+
+    private Node body() {
+        if(!accept("{")) {
+            return expr();
+        }
+        List<Node> parts = new ArrayList<>();
+        while(accept("val")) {
+            String name = identifier();
+            expect("=");
+            Node value = expr();
+            Node assign = new Node("Assign", name, value.wide, value);
+            assign.slot = declare(name, value.wide);
+            parts.add(assign);
+            accept(";");
+        }
+        Node result = expr();
+        accept(";");
+        expect("}");
+        parts.add(result);
+        return new Node("Block", "", result.wide, parts.toArray(new Node[0]));
+    }
+
+    private Node expr() {
+        if(accept("if")) {
+            expect("(");
+            Node cond = expr();
+            expect(")");
+            Node then = expr();
+            expect("else");
+            Node otherwise = expr();
+            return new Node("If", "if", then.wide || otherwise.wide, cond, then, otherwise);
+        }
+        Node left = sum();
+        String[] comps = {"==", "!=", "<", ">", "<=", ">="};
+        for(String comp: comps) {
+            if(accept(comp)) {
+                return new Node("Comp", comp, false, left, sum());
+            }
+        }
+        return left;
+    }
+
+    private Node sum() {
+        Node left = product();
+        while(peek().equals("+") || peek().equals("-")) {
+            String op = tokens.get(pos++).word;
+            Node right = product();
+            left = new Node("Op", op, left.wide || right.wide, left, right);
+        }
+        return left;
+    }
+
+    private Node product() {
+        Node left = atom();
+        while(peek().equals("*") || peek().equals("%")) {
+            String op = tokens.get(pos++).word;
+            Node right = atom();
+            left = new Node("Op", op, left.wide || right.wide, left, right);
+        }
+        return left;
+    }
+
+    private Node atom() {
+        if(peek().equals("if")) {
+            return expr();
+        } else if(accept("(")) {
+            List<Node> elements = new ArrayList<>();
+            elements.add(expr());
+            while(accept(",")) {
+                elements.add(expr());
+            }
+            expect(")");
+            if(elements.size() == 1) {
+                return elements.get(0);
+            }
+            return new Node("Tuple", "", true, elements.toArray(new Node[0]));
+        } else if(pos < tokens.size() && tokens.get(pos).type.equals("Number")) {
+            String word = tokens.get(pos++).word;
+            Node number = new Node("Number", word, false);
+            try {
+                number.value = Long.parseLong(word);
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("number " + word);
+            }
+            number.wide = number.value != (int) number.value;
+            return number;
+        }
+        String name = identifier();
+        if(name.equals("math") && accept(".")) {
+            String function = identifier();
+            expect("(");
+            Node a = expr();
+            expect(",");
+            Node b = expr();
+            expect(")");
+            if(!function.equals("max") && !function.equals("min")) {
+                throw new IllegalArgumentException("math." + function);
+            }
+            return new Node("Call", function, a.wide || b.wide, a, b);
+        }
+        int slot = slots.lastIndexOf(name);
+        if(slot < 0) {
+            throw new IllegalArgumentException("unknown name " + name);
+        }
+        if(accept(".")) {
+            String field = identifier();
+            Node node = new Node("Field", field, true);
+            node.slot = slot;
+            try {
+                node.value = Integer.parseInt(field.substring(1)) - 1;
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("field " + field);
+            }
+            return node;
+        }
+        Node node = new Node("Name", name, slotIsLong.get(slot));
+        node.slot = slot;
+        return node;
+    }
+
+    private int declare(String name, boolean isLong) {
+        slots.add(name);
+        slotIsLong.add(isLong);
+        slotCount = slots.size();
+        return slots.size() - 1;
+    }
+
+    private String identifier() {
+        if(pos < tokens.size() && tokens.get(pos).type.equals("Identifier")) {
+            return tokens.get(pos++).word;
+        }
+        throw new IllegalArgumentException("expected a name, found " + peek());
+    }
+
+    private String peek() {
+        return (pos < tokens.size()) ? tokens.get(pos).word : "";
+    }
+
+    private boolean accept(String word) {
+        if(peek().equals(word)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String word) {
+        if(!accept(word)) {
+            throw new IllegalArgumentException("expected " + word + ", found " + peek());
+        }
+    }
+}
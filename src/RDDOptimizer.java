@@ -0,0 +1,198 @@
+import java.util.*;
+/*
+    Rule based optimizer for translated pipelines, run by the parser on every plan it finishes
+
+    Rules are grouped into batches that run in order. A batch runs its rules in order either
+    once, or over and over until a whole pass changes nothing (a fixed point, with a limit on
+    the number of passes). New rewrites only need an OptimizerRule added to a batch, not
+    changes to the parser.
+
+    The default batches are:
+        Simplification  fixed point     ConstantFolding, SimplifyIf
+        Filters         once            RangeFilterFolding
+        Physical        once            WidthInference, ExpressionSplitting, PartitionPlanning
+
+    Any rule can be turned off by name. For every rule the optimizer counts how many times it
+    ran and how many of those runs changed the plan, and the time spent in it, so the cost of
+    each rewrite at translation time can be weighed against what it earns. The statistics may
+    be updated from several threads at once.
+
+    @author Jonathan Gill
+ */
+public class RDDOptimizer {
+    public static final int MAX_ITERATIONS = 100;
+
+    private static RDDOptimizer defaultOptimizer;
+
+    private List<Batch> batches = new ArrayList<>();
+    private Set<String> disabled = Collections.synchronizedSet(new HashSet<String>());
+    private Map<String, RuleStats> stats = new LinkedHashMap<>();
+
+    // rules that run together with one strategy
+    private static class Batch {
+        String name;
+        boolean fixedPoint;
+        List<OptimizerRule> rules = new ArrayList<>();
+    }
+
+    // what one rule has done so far
+    private static class RuleStats {
+        String batch;
+        long runs;
+        long fired;
+        long nanos;
+
+        synchronized void record(boolean changed, long time) {
+            runs++;
+            fired += changed ? 1 : 0;
+            nanos += time;
+        }
+    }
+
+    /*
+        Returns the optimizer with the default batches, shared by every parser that is not
+        given another one
+
+        @return RDDOptimizer the default optimizer
+     */
+    public static synchronized RDDOptimizer getDefault() {
+        if(defaultOptimizer == null) {
+            RDDOptimizer optimizer = new RDDOptimizer();
+            optimizer.addBatch("Simplification", true, new ConstantFolding(), new SimplifyIf());
+            optimizer.addBatch("Filters", false, new RangeFilterFolding());
+            optimizer.addBatch("Physical", false,
+                    new Pass("WidthInference") {
+                        boolean run(DataframePlan plan) {
+                            return WidthInference.apply(plan);
+                        }
+                    },
+                    new Pass("ExpressionSplitting") {
+                        boolean run(DataframePlan plan) {
+                            return ExpressionSplitter.apply(plan);
+                        }
+                    },
+                    new Pass("PartitionPlanning") {
+                        boolean run(DataframePlan plan) {
+                            return PartitionPlanner.apply(plan);
+                        }
+                    });
+            defaultOptimizer = optimizer;
+        }
+        return defaultOptimizer;
+    }
+
+    /*
+        Adds a batch that runs after the ones already added
+
+        @param name is the name the batch is reported under
+        @param fixedPoint is true to repeat the batch until it changes nothing, false to run it once
+        @param rules are the rules of the batch in the order they run
+     */
+    public void addBatch(String name, boolean fixedPoint, OptimizerRule... rules) {
+        Batch batch = new Batch();
+        batch.name = name;
+        batch.fixedPoint = fixedPoint;
+        batch.rules.addAll(Arrays.asList(rules));
+        batches.add(batch);
+        for(OptimizerRule rule: rules) {
+            RuleStats ruleStats = new RuleStats();
+            ruleStats.batch = name;
+            stats.put(rule.getName(), ruleStats);
+        }
+    }
+
+    /*
+        Turns a rule on or off
+
+        @param name is the name of the rule
+        @param enabled is false to skip the rule
+        @return boolean false if there is no rule with that name
+     */
+    public boolean setEnabled(String name, boolean enabled) {
+        if(!stats.containsKey(name)) {
+            return false;
+        }
+        if(enabled) {
+            disabled.remove(name);
+        } else {
+            disabled.add(name);
+        }
+        return true;
+    }
+
+    /*
+        Runs every batch on a plan
+
+        @param plan is the plan to rewrite
+     */
+    public void optimize(DataframePlan plan) {
+        for(Batch batch: batches) {
+            int iterations = 0;
+            boolean changed = true;
+            while(changed && iterations < (batch.fixedPoint ? MAX_ITERATIONS : 1)) {
+                changed = false;
+                for(OptimizerRule rule: batch.rules) {
+                    if(disabled.contains(rule.getName())) {
+                        continue;
+                    }
+                    long begin = System.nanoTime();
+                    boolean fired = rule.apply(plan);
+                    stats.get(rule.getName()).record(fired, System.nanoTime() - begin);
+                    changed |= fired;
+                }
+                iterations++;
+            }
+        }
+    }
+
+    /*
+        Prints what every rule has done so far
+
+        @return String a table with a line per rule
+     */
+    public String statsText() {
+        int width = 4; // wide enough for the longest name with " (off)" after it
+        for(String name: stats.keySet()) {
+            width = Math.max(width, name.length() + 6);
+        }
+        String format = "  %-16s %-" + width + "s %8s %8s %10s%n";
+        String text = String.format("Rule stats:%n" + format, "batch", "rule", "runs", "fired", "time ms");
+        for(Map.Entry<String, RuleStats> entry: stats.entrySet()) {
+            RuleStats rule = entry.getValue();
+            synchronized(rule) {
+                String name = entry.getKey() + (disabled.contains(entry.getKey()) ? " (off)" : "");
+                text += String.format(format, rule.batch, name, rule.runs, rule.fired,
+                        String.format("%.3f", rule.nanos / 1e6));
+            }
+        }
+        return text;
+    }
+
+    /*
+        Names of the rules, in the order they run
+
+        @return List<String> the rule names
+     */
+    public List<String> ruleNames() {
+        return new ArrayList<>(stats.keySet());
+    }
+
+    // an existing whole-plan pass, which reports itself whether it changed the plan
+    private static abstract class Pass implements OptimizerRule {
+        private String name;
+
+        Pass(String name) {
+            this.name = name;
+        }
+
+        abstract boolean run(DataframePlan plan);
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean apply(DataframePlan plan) {
+            return run(plan);
+        }
+    }
+}
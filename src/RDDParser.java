@@ -5,18 +5,39 @@ import java.util.*;
     The parser is implemented by way of recursive decent and is meant to be used with the
     RDDScanner class. It parses an input scala program written in the RDD API to one
     using the Dataframe API instead. Output can be retrieved via the getOutput function.
+    A file can hold several pipelines, which are translated in order. The functions passed
+    to map and filter are read ahead to their closing parenthesis and looked up in a UDFCache,
+    and only translated when they are not in it.
+
+    A function is translated straight into SQLExpr trees. The names it declares are kept in a
+    stack of symbol tables, one for the parameter and one for each block, that map each name to
+    the tree of its value, so a val used several times is one shared node rather than a copy of
+    its text. The tables only live while their function is read.
+
+    The parser never backtracks. Where two rules start alike it reads the common part once
+    (a tuple and a parenthesized <PureExpr> share their first element), and where the next
+    token is not enough it looks further ahead with the scanner's lookahead buffer.
 
     Grammar:
-    <Program>       ::= sc.range(<number>,<number>)<MapOps>.collect()
+    <Programs>      ::= <Program> | <Programs> [;] <Program>
+    <Program>       ::= sc.range(<number>,<number>)<MapOps>.<Action>
+    <Action>        ::= collect() | count() | sum() | max() | min()
+                      | reduce(<ReduceUDF>)
+    <ReduceUDF>     ::= (<identifier>,<identifier>) => <identifier> + <identifier>
+                      | (<identifier>,<identifier>) => if(<identifier> <Comp> <identifier>) <identifier> else <identifier>
+                      | (<identifier>,<identifier>) => math.max(<identifier>,<identifier>)
+                      | (<identifier>,<identifier>) => math.min(<identifier>,<identifier>)
     <MapOps>        ::= ∅
                       | <MapOps>.map(<UDF>)
+                      | <MapOps>.filter(<FilterUDF>)
     <UDF>           ::= <identifier> => <Expression>
+    <FilterUDF>     ::= <identifier> => <CompExpr>
     <Expression>    ::= {<ComplexExpr>}
                       | <SimpleExpr>
     <SimpleExpr>    ::= <PureExpr>
-                      | (<TupleExpr>)
-    <TupleExpr>     ::= <PureExpr>, <PureExpr>
-                      | <TupleExpr>, <PureExpr>
+                      | (<PureExpr>, <TupleExpr>)
+    <TupleExpr>     ::= <PureExpr>
+                      | <PureExpr>, <TupleExpr>
     <ComplexExpr>   ::= <SimpleExpr>
                       | <AssignExprs>;<SimpleExpr>
     <AssignExprs>   ::= <AssignExpr>
@@ -37,16 +58,49 @@ public class RDDParser {
     private boolean endState;
     private RDDScanner scanner;
     private SimpleToken currentToken;
-    private String out;
-    private Stack<SimpleToken> UDFStack;
-    private HashMap<String, String> symbolTable;
-    private String SQL;
-    private List<HashMap> UDFSymbolTables;
-    private Boolean inAssignExpr;
-    private int tupleCount;
+    private DataframePlan plan;
+    private RDDPipeline pipeline;
+    private List<DataframePlan> plans;
+    private List<RDDPipeline> pipelines;
+    private List<SimpleToken> udfTokens;
+    private List<SQLExpr> columns;
+    private ArrayDeque<HashMap<String, SQLExpr>> scopes; // the names of the function being translated, innermost first
+    private SQLExpr expr; // the tree of the last <PureExpr> or <CompExpr>
+    private boolean echo = true;
+    private RDDOptimizer optimizer = RDDOptimizer.getDefault();
+    private UDFCache udfCache = UDFCache.getDefault();
+    private List<SimpleToken> replay; // tokens read ahead, to be parsed again
+    private int replayed;
 
     // boolean EOF;
 
+    /*
+        Chooses whether the input is printed as it is parsed
+
+        @param echo is false to parse quietly
+     */
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    /*
+        Chooses the optimizer the translated pipelines are rewritten with
+
+        @param optimizer is the optimizer to use instead of the default one
+     */
+    public void setOptimizer(RDDOptimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    /*
+        Chooses the cache of translated functions
+
+        @param udfCache is the cache to use instead of the default one, or null for none
+     */
+    public void setUDFCache(UDFCache udfCache) {
+        this.udfCache = udfCache;
+    }
+
     /*
         Returns the output text containing scala code now using
         the Dataframe API
@@ -58,29 +112,49 @@ public class RDDParser {
             System.err.println("ERROR: Tried to generate output for an incomplete or failed parse");
             System.exit(1);
         }
-        return out;
+        if(plans.size() == 1) {
+            return plans.get(0).toScala();
+        }
+        return PrefixSharing.toScala(plans);
     }
 
     /*
-        Prints to the console the contents of the symbol tables used in the
-        UDF to SQL translation.
+        Returns the translated plan of the first pipeline, for tools that look at more
+        than the output text
 
-        @output void
+        @output DataframePlan of the parsed program
      */
-    public void printUDFSymbolTables() {
-        int i = 1;
-        for (HashMap table: UDFSymbolTables) {
+    public DataframePlan getPlan() {
+        return getPlans().get(0);
+    }
 
-            System.out.println("Symbol Table " + i + ":");
-            Iterator itr = table.keySet().iterator();
-            while (itr.hasNext()) {
-                String key = (String) itr.next();
-                String val = (String) table.get(key);
+    /*
+        Returns the input program of the first pipeline as it was written
 
-                System.out.println("key: " + key + ", val: " + val);
-            }
-            i++;
-        }
+        @output RDDPipeline of the parsed program
+     */
+    public RDDPipeline getPipeline() {
+        return getPipelines().get(0);
+    }
+
+    /*
+        Returns the translated plan of every pipeline in the file
+
+        @output List<DataframePlan> the plans in input order
+     */
+    public List<DataframePlan> getPlans() {
+        getOutput(); // checks that the parse finished
+        return plans;
+    }
+
+    /*
+        Returns every pipeline of the file as it was written
+
+        @output List<RDDPipeline> the pipelines in input order
+     */
+    public List<RDDPipeline> getPipelines() {
+        getOutput(); // checks that the parse finished
+        return pipelines;
     }
 
     /*
@@ -92,20 +166,47 @@ public class RDDParser {
         the parser encountered and error or otherwise failed to finish.
      */
     public boolean parse(RDDScanner scanner) {
-        System.out.println("File Input:");
+        if(echo) {
+            System.out.println("File Input:");
+        }
         endState = false;
         this.scanner = scanner;
-        out = "";
-        UDFStack = new Stack<>();
-        symbolTable = new HashMap<>();
-        SQL = "";
-        UDFSymbolTables = new ArrayList<>();
-        inAssignExpr = false;
-        tupleCount = 0;
+        plans = new ArrayList<>();
+        pipelines = new ArrayList<>();
+        replay = null;
 
         // EOF = false;
 
-        return program();
+        if(getNextToken()) {
+            return programs();
+        }
+        return false;
+    }
+
+    /*
+        Parses the pipelines of the file one after the other. Each one starts with fresh
+        translation state and is handed to the optimizer once it is complete.
+
+        @output boolean true if every pipeline was parsed and the file ended after the last
+     */
+    private boolean programs() {
+        while(true) {
+            plan = new DataframePlan();
+            pipeline = new RDDPipeline();
+            udfTokens = null;
+            columns = new ArrayList<>();
+            scopes = null;
+            if(!program()) {
+                return false;
+            }
+            optimizer.optimize(plan);
+            plans.add(plan);
+            pipelines.add(pipeline);
+            if(!getNextToken() || (currentToken.word.equals(";") && !getNextToken())) {
+                endState = true;
+                return true;
+            }
+        }
     }
 
     /*
@@ -118,6 +219,13 @@ public class RDDParser {
     private boolean getNextToken() {
         SimpleToken token;
 
+        if(replay != null) {
+            if(replayed < replay.size()) { // already echoed and recorded
+                currentToken = replay.get(replayed++);
+                return true;
+            }
+            replay = null;
+        }
 /*      // allows us to detect an end-of-file token
         if(!EOF) {
             if ((token = scanner.getNextToken()) == null) {
@@ -132,15 +240,46 @@ public class RDDParser {
 */
         if((token = scanner.getNextToken()) != null) {
             currentToken = token;
-            System.out.print(currentToken.word);
+            if(echo) {
+                System.out.print(currentToken.word);
+            }
+            if(udfTokens != null && !currentToken.type.equals("Space")) {
+                udfTokens.add(currentToken);
+            }
             if(currentToken.type.equals("Space")) { // ignore whitespace
-                getNextToken();
+                return getNextToken();
             }
             return true;
         }
         return false;
     }
 
+    /*
+        Looks at a token after the current one without consuming it, skipping whitespace
+
+        @param k is how far ahead to look, 1 for the token getNextToken() reads next
+        @output SimpleToken the token, or a None token if the input ends first or the token is
+        further than the scanner's lookahead buffer reaches
+     */
+    private SimpleToken peekToken(int k) {
+        if(replay != null) {
+            if(replayed + k <= replay.size()) {
+                return replay.get(replayed + k - 1);
+            }
+            k -= replay.size() - replayed;
+        }
+        for(int i = 1; i <= RDDScanner.LOOKAHEAD; i++) {
+            SimpleToken token = scanner.peek(i);
+            if(token == null) {
+                break;
+            }
+            if(!token.type.equals("Space") && --k == 0) {
+                return token;
+            }
+        }
+        return new SimpleToken("", "None");
+    }
+
     /*
         The following functions implement the recursive-decent parsing algorithm.
         They use ad-hoc syntax-directed translation to produce the output code.
@@ -148,47 +287,33 @@ public class RDDParser {
         @output boolean True if the production rule was matched. False otherwise.
      */
     private boolean program() {
-        if(getNextToken()) {
-            if(currentToken.word.equals("sc")) {
-                out += "spark";
-                if(getNextToken()){
-                    if(currentToken.word.equals(".")) {
-                        out += ".";
-                        if(getNextToken()){
-                            if(currentToken.word.equals("range")) {
-                                out += "range";
-                                if(getNextToken()){
-                                    if(currentToken.word.equals("(")) {
-                                        out += "(";
-                                        if(getNextToken()){
-                                            if(currentToken.type.equals("Number")) {
-                                                out += currentToken.word;
-                                                if(getNextToken()){
-                                                    if(currentToken.word.equals(",")) {
-                                                        out += ",";
-                                                        if(getNextToken()){
-                                                            if(currentToken.type.equals("Number")) {
-                                                                out += currentToken.word;
-                                                                if(getNextToken()){
-                                                                    if(currentToken.word.equals(")")) {
-                                                                        out += ").selectExpr(\"id as _1\")";
-                                                                        if(getNextToken()){
-                                                                            if(mapOps()) {
-                                                                                if(currentToken.word.equals("collect")) {
-                                                                                    out += "collect";
-                                                                                    if(getNextToken()){
-                                                                                        if(currentToken.word.equals("(")) {
-                                                                                            out += "(";
-                                                                                            if(getNextToken()){
-                                                                                                if(currentToken.word.equals(")")) {
-                                                                                                    out += ")";
-                                                                                                    endState = true;
-                                                                                                    return true;
-                                                                                                }
-                                                                                            }
-                                                                                        }
-                                                                                    }
-                                                                                }
+        if(currentToken.word.equals("sc")) {
+            if(getNextToken()){
+                if(currentToken.word.equals(".")) {
+                    if(getNextToken()){
+                        if(currentToken.word.equals("range")) {
+                            if(getNextToken()){
+                                if(currentToken.word.equals("(")) {
+                                    if(getNextToken()){
+                                        if(currentToken.type.equals("Number") && rangeBound()) {
+                                            plan.start = Long.parseLong(currentToken.word);
+                                            pipeline.start = plan.start;
+                                            if(getNextToken()){
+                                                if(currentToken.word.equals(",")) {
+                                                    if(getNextToken()){
+                                                        if(currentToken.type.equals("Number") && rangeBound()) {
+                                                            plan.end = Long.parseLong(currentToken.word);
+                                                            pipeline.end = plan.end;
+                                                            if(getNextToken()){
+                                                                if(currentToken.word.equals(")")) {
+                                                                    DataframeStage stage = new DataframeStage("select");
+                                                                    stage.columns.add(SQLExpr.make("Column", "id"));
+                                                                    stage.names.add("_1");
+                                                                    plan.stages.add(stage);
+                                                                    if(getNextToken()){
+                                                                        if(mapOps()) {
+                                                                            if(action()) {
+                                                                                return true;
                                                                             }
                                                                         }
                                                                     }
@@ -210,28 +335,235 @@ public class RDDParser {
         return false;
     }
 
+    /*
+        Checks that the current Number token fits in the Long used by sc.range
+
+        @output boolean true if the bound can be used
+     */
+    private boolean rangeBound() {
+        try {
+            Long.parseLong(currentToken.word);
+            return true;
+        } catch(NumberFormatException e) {
+            System.err.println("\nError: Range bound " + currentToken.word + " does not fit in a Long");
+            return false;
+        }
+    }
+
+    // one .map(...) or .filter(...) per turn of the loop, so long chains do not nest calls
     private boolean mapOps() {
-        if(currentToken.word.equals(".")) {
-            out += "\n     .";
+        while(true) {
+            if(currentToken.word.equals(".")) {
+                if(getNextToken()) {
+                    if(isAction(currentToken.word)) { // empty case
+                        return true;
+                    } else if (currentToken.word.equals("map")) { // non-empty case
+                        if(getNextToken()) {
+                            if(currentToken.word.equals("(")) {
+                                if(getNextToken()) {
+                                    startRecording();
+                                    List<SQLExpr> translated = function("map");
+                                    if(translated != null) {
+                                        pipeline.stages.add(new RDDStage("map", stopRecording()));
+                                        DataframeStage stage = new DataframeStage("select");
+                                        for(int i = 0; i < translated.size(); i++) {
+                                            stage.columns.add(translated.get(i));
+                                            stage.names.add("_" + (i + 1));
+                                        }
+                                        if(currentToken.word.equals(")")) {
+                                            plan.stages.add(stage);
+                                            if(getNextToken()) {
+                                                continue;
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    } else if (currentToken.word.equals("filter")) {
+                        if(getNextToken()) {
+                            if(currentToken.word.equals("(")) {
+                                if(getNextToken()) {
+                                    startRecording();
+                                    List<SQLExpr> predicate = function("filter");
+                                    if(predicate != null) {
+                                        RDDStage source = new RDDStage("filter", stopRecording());
+                                        pipeline.stages.add(source);
+                                        if(currentToken.word.equals(")")) {
+                                            DataframeStage stage = new DataframeStage("where");
+                                            stage.columns.add(predicate.get(0));
+                                            stage.source = source;
+                                            plan.stages.add(stage);
+                                            if(getNextToken()) {
+                                                continue;
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /*
+        Translates the function passed to map or filter, or takes its translation from the cache.
+        The function is read up to the parenthesis that closes the call, which becomes the
+        current token; on a miss those tokens are replayed through UDF() or filterUDF().
+
+        @param kind is map or filter
+        @output List<SQLExpr> the columns of a map or the predicate of a filter, null on an error
+     */
+    private List<SQLExpr> function(String kind) {
+        List<SimpleToken> tokens = new ArrayList<>();
+        tokens.add(currentToken);
+        int depth = 0;
+        while(depth > 0 || !currentToken.word.equals(")")) {
+            if(currentToken.word.equals("(")) {
+                depth++;
+            } else if(currentToken.word.equals(")")) {
+                depth--;
+            }
+            if(!getNextToken()) {
+                break;
+            }
+            tokens.add(currentToken);
+        }
+        String key = null;
+        if(udfCache != null && currentToken.word.equals(")")) {
+            key = UDFCache.key(kind, tokens.subList(0, tokens.size() - 1));
+        }
+        if(key != null) {
+            List<SQLExpr> cached = udfCache.get(key);
+            if(cached != null) {
+                return cached;
+            }
+        }
+
+        replay = tokens;
+        replayed = 1;
+        currentToken = tokens.get(0);
+        List<SQLExpr> translated = null;
+        if(kind.equals("map") ? UDF() : filterUDF()) {
+            translated = kind.equals("map") ? columns : Collections.singletonList(expr);
+        }
+        // only cache a function that was parsed exactly up to the closing parenthesis
+        if(translated != null && key != null && replay != null && replayed == replay.size()) {
+            udfCache.put(key, translated);
+        }
+        replay = null;
+        return translated;
+    }
+
+    /*
+        Starts keeping the tokens of a function passed to an RDD operation, beginning
+        with the current token
+     */
+    private void startRecording() {
+        udfTokens = new ArrayList<>();
+        udfTokens.add(currentToken);
+    }
+
+    /*
+        Stops keeping tokens. The current token is the one that follows the function,
+        so it is not part of it.
+
+        @output List<SimpleToken> the non-space tokens of the function
+     */
+    private List<SimpleToken> stopRecording() {
+        List<SimpleToken> tokens = udfTokens;
+        udfTokens = null;
+        tokens.remove(tokens.size() - 1);
+        return tokens;
+    }
+
+    /*
+        Checks to see if the word is one of the RDD actions that can end a pipeline
+
+        @param word is the text of the token
+        @output boolean true if it is an action
+     */
+    private boolean isAction(String word) {
+        return word.equals("collect") || word.equals("count") || word.equals("sum")
+                || word.equals("max") || word.equals("min") || word.equals("reduce");
+    }
+
+    private boolean action() {
+        if(isAction(currentToken.word)) {
+            plan.terminal = currentToken.word;
+            if(!plan.terminal.equals("collect") && !plan.terminal.equals("count") && elementIsTuple()) {
+                System.err.println("\nError: " + plan.terminal + "() needs an RDD of numbers, not tuples");
+                return false;
+            }
+            if(plan.terminal.equals("sum") || plan.terminal.equals("max") || plan.terminal.equals("min")) {
+                plan.aggregate = plan.terminal;
+            }
             if(getNextToken()) {
-                if(currentToken.word.equals("collect")) { // empty case
-                    return true;
-                } else if (currentToken.word.equals("map")) { // non-empty case
-                    out += "selectExpr";
+                if(currentToken.word.equals("(")) {
                     if(getNextToken()) {
-                        if(currentToken.word.equals("(")) {
-                            out += "(";
-                            if(getNextToken()) {
-                                if(UDF()) {
-                                    // TODO
-                                    out += SQL;
-                                    // out += "<SQL>"; // temp placeholder
-                                    // may need Stack or symbol table.
-                                    if(currentToken.word.equals(")")) {
-                                        out += ")";
-                                        if(getNextToken()) {
-                                            if(mapOps()) {
-                                                return true;
+                        if(plan.terminal.equals("reduce")) {
+                            startRecording();
+                            if(reduceUDF()) {
+                                pipeline.action = new RDDStage("reduce", stopRecording());
+                                if(currentToken.word.equals(")")) {
+                                    return true;
+                                }
+                            }
+                        } else if(currentToken.word.equals(")")) {
+                            pipeline.action = new RDDStage(plan.terminal, new ArrayList<SimpleToken>());
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+        Checks to see if the last projection produced more than one column
+
+        @output boolean true if the elements of the RDD are tuples
+     */
+    private boolean elementIsTuple() {
+        for(int i = plan.stages.size() - 1; i >= 0; i--) {
+            DataframeStage stage = plan.stages.get(i);
+            if(stage.type.equals("select")) {
+                return stage.columns.size() > 1;
+            }
+        }
+        return false;
+    }
+
+    /*
+        Matches the reduce functions that have a SQL aggregate, a + b (sum) and the
+        two argument max and min. Anything else cannot be distributed as an aggregate.
+
+        @output boolean true if the function was recognized, plan.aggregate holds the aggregate
+     */
+    private boolean reduceUDF() {
+        if(currentToken.word.equals("(")) {
+            if(getNextToken() && currentToken.type.equals("Identifier")) {
+                String a = currentToken.word;
+                if(getNextToken() && currentToken.word.equals(",")) {
+                    if(getNextToken() && currentToken.type.equals("Identifier")) {
+                        String b = currentToken.word;
+                        if(getNextToken() && currentToken.word.equals(")")) {
+                            if(getNextToken() && currentToken.word.equals("=>")) {
+                                if(getNextToken()) {
+                                    if(currentToken.word.equals("if")) {
+                                        return reduceIf(a, b);
+                                    } else if(currentToken.word.equals("math")) {
+                                        return reduceMath(a, b);
+                                    } else if(isParam(a, b)) {
+                                        String left = currentToken.word;
+                                        if(getNextToken() && currentToken.word.equals("+")) {
+                                            if(getNextToken() && isParam(a, b) && !currentToken.word.equals(left)) {
+                                                plan.aggregate = "sum";
+                                                return getNextToken();
                                             }
                                         }
                                     }
@@ -242,35 +574,141 @@ public class RDDParser {
                 }
             }
         }
+        System.err.println("\nError: reduce() only supports a + b, max and min");
+        return false;
+    }
+
+    // if(a > b) a else b and its variations
+    private boolean reduceIf(String a, String b) {
+        if(getNextToken() && currentToken.word.equals("(")) {
+            if(getNextToken() && isParam(a, b)) {
+                String left = currentToken.word;
+                if(getNextToken()) {
+                    String comp = currentToken.word;
+                    if(comp.equals("<") || comp.equals(">") || comp.equals("<=") || comp.equals(">=")) {
+                        if(getNextToken() && isParam(a, b) && !currentToken.word.equals(left)) {
+                            if(getNextToken() && currentToken.word.equals(")")) {
+                                if(getNextToken() && isParam(a, b)) {
+                                    String then = currentToken.word;
+                                    if(getNextToken() && currentToken.word.equals("else")) {
+                                        if(getNextToken() && isParam(a, b) && !currentToken.word.equals(then)) {
+                                            // picking the left side when it is bigger is max
+                                            boolean bigger = comp.startsWith(">");
+                                            plan.aggregate = (bigger == then.equals(left)) ? "max" : "min";
+                                            return getNextToken();
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        System.err.println("\nError: reduce() only supports a + b, max and min");
         return false;
     }
 
+    // math.max(a, b) and math.min(a, b)
+    private boolean reduceMath(String a, String b) {
+        if(getNextToken() && currentToken.word.equals(".")) {
+            if(getNextToken() && (currentToken.word.equals("max") || currentToken.word.equals("min"))) {
+                String function = currentToken.word;
+                if(getNextToken() && currentToken.word.equals("(")) {
+                    if(getNextToken() && isParam(a, b)) {
+                        String left = currentToken.word;
+                        if(getNextToken() && currentToken.word.equals(",")) {
+                            if(getNextToken() && isParam(a, b) && !currentToken.word.equals(left)) {
+                                if(getNextToken() && currentToken.word.equals(")")) {
+                                    plan.aggregate = function;
+                                    return getNextToken();
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        System.err.println("\nError: reduce() only supports a + b, max and min");
+        return false;
+    }
+
+    private boolean isParam(String a, String b) {
+        return currentToken.word.equals(a) || currentToken.word.equals(b);
+    }
+
     private boolean UDF() {
         if(currentToken.type.equals("Identifier")) {
-            // TODO
-            UDFStack = new Stack<SimpleToken>();
-            symbolTable = new HashMap<String,String>();
-            SQL = "";
-            symbolTable.put(currentToken.word, "Start");
+            columns = new ArrayList<>();
+            openScope(currentToken.word);
             if(getNextToken()){
                 if(currentToken.word.equals("=>")) {
                     if(getNextToken()) {
                         if(expression()) {
-                            UDFSymbolTables.add(symbolTable);
+                            scopes = null;
                             return true;
                         }
                     }
                 }
             }
+            scopes = null;
         }
         return false;
     }
 
+    private boolean filterUDF() {
+        if(currentToken.type.equals("Identifier")) {
+            openScope(currentToken.word);
+            if(getNextToken()){
+                if(currentToken.word.equals("=>")) {
+                    if(getNextToken()) {
+                        if(compExpr()) {
+                            scopes = null;
+                            return true;
+                        }
+                    }
+                }
+            }
+            scopes = null;
+        }
+        return false;
+    }
+
+    /*
+        Starts the symbol tables of a function, which are dropped again when the function ends.
+        The parameter stands for the column _1, or for the whole tuple when a field is read.
+
+        @param parameter is the name of the parameter
+     */
+    private void openScope(String parameter) {
+        scopes = new ArrayDeque<>();
+        scopes.push(new HashMap<String, SQLExpr>());
+        scopes.peek().put(parameter, SQLExpr.make("Column", "_1"));
+    }
+
+    /*
+        Finds what a name stands for, looking in the innermost scope first
+
+        @param name is the variable
+        @output SQLExpr the tree it stands for, or null if it was never declared
+     */
+    private SQLExpr lookup(String name) {
+        for(Map<String, SQLExpr> scope: scopes) {
+            SQLExpr value = scope.get(name);
+            if(value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
     private boolean expression() {
         if(currentToken.word.equals("{")){
+            scopes.push(new HashMap<String, SQLExpr>()); // the vals of the block
             if(getNextToken()) {
                 if (complexExpr()) {
                     if (currentToken.word.equals("}")) {
+                        scopes.pop();
                         if(getNextToken()) {
                             return true;
                         }
@@ -283,71 +721,64 @@ public class RDDParser {
         return false;
     }
 
+    /*
+        A tuple and a parenthesized expression both start with ( <PureExpr>, so that much is
+        read once and the token after it picks the rule: a comma makes it a tuple, and a closing
+        parenthesis an expression, which an <Op> may continue.
+     */
     private boolean simpleExpr() {
-        SQL += "\"";
         if(currentToken.word.equals("(")) {
             if(getNextToken()) {
-                if(tupleExpr()) {
-                    if(currentToken.word.equals(")")) {
+                if(pureExpr()) {
+                    if(currentToken.word.equals(",")) { // a tuple
+                        if(endColumn() && getNextToken()) {
+                            if(tupleExpr()) {
+                                if(currentToken.word.equals(")")) {
+                                    return getNextToken();
+                                }
+                            }
+                        }
+                    } else if(currentToken.word.equals(")")) { // a parenthesized expression
                         if(getNextToken()) {
-                            return true;
+                            if(operators(expr)) {
+                                return endColumn();
+                            }
                         }
                     }
                 }
             }
         } else if (pureExpr()) {
-            SQL += " as _1\"";
-            return true;
+            return endColumn();
         }
         return false;
     }
 
+    // the elements of a tuple after the first, up to the closing parenthesis
     private boolean tupleExpr() {
         if(pureExpr()) {
-            tupleCount = 1;
-            //if(getNextToken()) {
-                if(currentToken.word.equals(",")) { // we have a tuple
-                    SQL += " as _" + tupleCount + "\"";
-                    SQL += ", \"";
-                    if(getNextToken()) {
-                        if (tupleExpr2()) {
-                            return true;
-                        }
-                    }
-                } else if(currentToken.word.equals(")")) { // we guessed wrong
-                    // if(getNextToken()) {
-                        SQL += " as _1\"";
-                        return true;
-                    // }
-                }
-            //}
-        }
-        System.out.print("\n\ntupleExpr() fails on " + currentToken.word);
-        return false;
-    }
-
-    private boolean tupleExpr2() {
-        if(pureExpr()) {
-            tupleCount++;
             if(currentToken.word.equals(",")) {
-                SQL += " as _" + tupleCount + "\"";
-                SQL += ", \"";
-                if(getNextToken()) {
-                    if(tupleExpr2()) {
+                if(endColumn() && getNextToken()) {
+                    if(tupleExpr()) {
                         return true;
                     }
                 }
-            } else /*if(currentToken.word.equals(")"))*/ {
-                // if(getNextToken()) {
-                    SQL += " as _" + tupleCount + "\"";
-                    return true;
-                // }
+            } else if(currentToken.word.equals(")")) {
+                return endColumn();
             }
         }
-        System.out.print("\n\ntupleExpr2() fails on " + currentToken.word);
         return false;
     }
 
+    /*
+        Finishes the output column whose tree was built last
+
+        @output boolean true
+     */
+    private boolean endColumn() {
+        columns.add(expr);
+        return true;
+    }
+
     private boolean complexExpr() {
         if(currentToken.word.equals("val")) {
             if(assignExprs()) {
@@ -379,11 +810,10 @@ public class RDDParser {
     private boolean assignExprs2() {
         if(currentToken.word.equals(";")) {
             if(getNextToken()) {
-                if (assignExprs()) {
-                    return true;
-                } else {
-                    return true;
+                if(currentToken.word.equals("val")) { // another assignment, otherwise the result
+                    return assignExprs();
                 }
+                return true;
             }
         } else {
             return true;
@@ -393,33 +823,15 @@ public class RDDParser {
 
     private boolean assignExpr() {
         if(currentToken.word.equals("val")) {
-            inAssignExpr = true;
             if(getNextToken()) {
                 if(currentToken.type.equals("Identifier")) {
                     String key = currentToken.word;
                     if(getNextToken()) {
                         if(currentToken.word.equals("=")) {
-                            UDFStack.push(currentToken);
                             if(getNextToken()) {
                                 if(pureExpr()) {
-                                    String val = "";
-
-                                    while(!UDFStack.peek().word.equals("=")) {
-                                        SimpleToken token = UDFStack.pop();
-                                        if(token.type.equals("Identifier") && !UDFStack.peek().word.equals(".")) {
-                                            if(symbolTable.containsKey(token.word)) {
-                                                if(symbolTable.get(token.word).equals("Start")) {
-                                                    val = "_1" + val;
-                                                }
-                                            }
-                                        } else {
-                                            val = token.word + val;
-                                        }
-                                    }
-                                    // if(!symbolTable.containsKey(key)) {
-                                        symbolTable.put(key, val);
-                                    // }
-                                    inAssignExpr = false;
+                                    // every use of the name shares this tree, nothing is copied
+                                    scopes.peek().put(key, expr);
                                     return true;
                                 }
                             }
@@ -431,69 +843,102 @@ public class RDDParser {
         return false;
     }
 
+    // an operand and the <Op> <PureExpr> after it, leaving the tree in expr
     private boolean pureExpr() {
-        if(currentToken.type.equals("Identifier") || currentToken.type.equals("Number")) {
-            if(currentToken.type.equals("Number") && !inAssignExpr) {
-                SQL += currentToken.word;
+        if(operand()) {
+            return operators(expr);
+        }
+        return false;
+    }
+
+    /*
+        Reads the operators and operands that follow an operand and builds their tree, with
+        * and % binding tighter than + and -, and operators that bind the same applied left
+        to right
+
+        @param first is the operand that was read already
+        @output boolean true if every operator was followed by an operand, expr holds the tree
+     */
+    private boolean operators(SQLExpr first) {
+        List<SQLExpr> operands = new ArrayList<>();
+        List<String> ops = new ArrayList<>();
+        operands.add(first);
+        while(isOp(currentToken.word)) {
+            ops.add(currentToken.word);
+            if(!getNextToken() || !operand()) {
+                return false;
             }
-            UDFStack.push(currentToken);
+            operands.add(expr);
+        }
+        List<SQLExpr> terms = new ArrayList<>();
+        List<String> termOps = new ArrayList<>();
+        SQLExpr term = operands.get(0);
+        for(int i = 0; i < ops.size(); i++) {
+            if(ops.get(i).equals("*") || ops.get(i).equals("%")) {
+                term = SQLExpr.make("Op", ops.get(i), term, operands.get(i + 1));
+            } else {
+                terms.add(term);
+                termOps.add(ops.get(i));
+                term = operands.get(i + 1);
+            }
+        }
+        terms.add(term);
+        expr = terms.get(0);
+        for(int i = 0; i < termOps.size(); i++) {
+            expr = SQLExpr.make("Op", termOps.get(i), expr, terms.get(i + 1));
+        }
+        return true;
+    }
+
+    /*
+        Reads one operand: a number, a variable, a field of the parameter, an expression in
+        parentheses or an if expression
+
+        @output boolean true if an operand was read, expr holds its tree
+     */
+    private boolean operand() {
+        if(currentToken.type.equals("Identifier") || currentToken.type.equals("Number")) {
+            SimpleToken first = currentToken;
+            // looking past the token tells r._1 from a plain r before r is translated
+            boolean field = peekToken(1).word.equals(".");
             if(getNextToken()) {
-                if(pureExpr2()) {
-                    if(pureExpr3()) {
-                        return true;
-                    }
+                if(field) {
+                    return pureExpr2(first);
+                } else if(first.type.equals("Number")) {
+                    expr = SQLExpr.make("Number", first.word);
+                    return true;
                 }
+                expr = lookup(first.word);
+                if(expr == null) {
+                    System.err.println("\nError: Variable must be declared before use");
+                    return false;
+                }
+                return true;
             }
         } else if (currentToken.word.equals("(")) {
-            UDFStack.push(currentToken);
-            if(!inAssignExpr) {
-                SQL += "(";
-            }
             if(getNextToken()) {
-                if(pureExpr()) {
-                    if(getNextToken()) {
-                        if(currentToken.word.equals(")")) {
-                            UDFStack.push(currentToken);
-                            if(!inAssignExpr) {
-                                SQL += ")";
-                            }
-                            if(getNextToken()) {
-                                return true;
-                            }
+                if(pureExpr()) { // leaves the ) as the current token
+                    if(currentToken.word.equals(")")) {
+                        if(getNextToken()) {
+                            return true;
                         }
                     }
                 }
             }
         } else if (currentToken.word.equals("if")) {
-            UDFStack.push(currentToken);
-            if(!inAssignExpr) {
-                SQL += "if";
-            }
             if(getNextToken()) {
                 if(currentToken.word.equals("(")) {
-                    UDFStack.push(currentToken);
-                    if(!inAssignExpr) {
-                        SQL += "(";
-                    }
                     if(getNextToken()) {
                         if(compExpr()) {
+                            SQLExpr cond = expr;
                             if(currentToken.word.equals(")")) {
-                                UDFStack.push(currentToken);
-                                if(!inAssignExpr) {
-                                    SQL += ",";
-                                }
                                 if(getNextToken()) {
                                     if(pureExpr()) {
+                                        SQLExpr then = expr;
                                         if(currentToken.word.equals("else")) {
-                                            UDFStack.push(currentToken);
-                                            if(!inAssignExpr) {
-                                                SQL += ",";
-                                            }
                                             if(getNextToken()) {
                                                 if(pureExpr()) {
-                                                    if(!inAssignExpr) {
-                                                        SQL += ")";
-                                                    }
+                                                    expr = SQLExpr.make("If", "if", cond, then, expr);
                                                     return true;
                                                 }
                                             }
@@ -509,63 +954,34 @@ public class RDDParser {
         return false;
     }
 
-    private boolean pureExpr2() {
-        if(currentToken.word.equals(".")) {
-            UDFStack.push(currentToken);
-            if(getNextToken()) {
-                if(currentToken.type.equals("Identifier") || currentToken.type.equals("Number")) {
-                    UDFStack.push(currentToken);
-                    if(currentToken.type.equals("Number")) {
-                        System.err.println("\nError: Floating point number inside a UDF");
-                        return false;
-                    } else if(!inAssignExpr) {
-                        UDFStack.pop();
-                        UDFStack.pop();
-                        String key = UDFStack.pop().word;
-                        if(symbolTable.containsKey(key) && symbolTable.get(key).equals("Start")) {
-                            SQL += currentToken.word;
-                        } else {
-                            System.err.println("\nError: Variable must be declared before use");
-                            return false;
-                        }
-                    }
-                    if(getNextToken()) {
-                        return true;
-                    }
+    // the field of a tuple, owner._1, where the current token is the .
+    private boolean pureExpr2(SimpleToken owner) {
+        if(getNextToken()) {
+            if(currentToken.type.equals("Number")) {
+                System.err.println("\nError: Floating point number inside a UDF");
+                return false;
+            } else if(currentToken.type.equals("Identifier")) {
+                SQLExpr tuple = owner.type.equals("Identifier") ? lookup(owner.word) : null;
+                if(tuple == null || !tuple.type.equals("Column")) {
+                    System.err.println("\nError: Variable must be declared before use");
+                    return false;
                 }
-            }
-        } else { // empty case
-            if(!inAssignExpr) {
-                // UDFStack.pop(); // pop off the .
-                String ID = UDFStack.pop().word; // get the identifier
-                if(symbolTable.containsKey(ID)) {
-                    if(symbolTable.get(ID).equals("Start")) {
-                        SQL += "_1";
-                    } else {
-                        SQL += symbolTable.get(ID);
-                    }
+                expr = SQLExpr.make("Column", currentToken.word);
+                if(getNextToken()) {
+                    return true;
                 }
             }
-            return true;
-        }
-        return false;
-    }
-
-    private boolean pureExpr3() {
-        if(op()) {
-            if(pureExpr()) {
-                return true;
-            }
-        } else { // empty case
-            return true;
         }
         return false;
     }
 
     private boolean compExpr() {
         if(pureExpr()) {
+            SQLExpr left = expr;
+            String comp = currentToken.word;
             if(comp()) {
                 if(pureExpr()) {
+                    expr = SQLExpr.make("Comp", comp, left, expr);
                     return true;
                 }
             }
@@ -573,28 +989,14 @@ public class RDDParser {
         return false;
     }
 
-    private boolean op() {
-        if(currentToken.word.equals("+") || currentToken.word.equals("-")
-                || currentToken.word.equals("*") || currentToken.word.equals("%")) {
-            UDFStack.push(currentToken);
-            if(!inAssignExpr) {
-                SQL += currentToken.word;
-            }
-            if(getNextToken()) {
-                return true;
-            }
-        }
-        return false;
+    private static boolean isOp(String word) {
+        return word.equals("+") || word.equals("-") || word.equals("*") || word.equals("%");
     }
 
     private boolean comp() {
         if(currentToken.word.equals("==") || currentToken.word.equals("!=")
                 || currentToken.word.equals("<") || currentToken.word.equals(">")
                 || currentToken.word.equals("<=") || currentToken.word.equals(">=")) {
-            UDFStack.push(currentToken);
-            if(!inAssignExpr) {
-                SQL += currentToken.word;
-            }
             if(getNextToken()) {
                 return true;
             }
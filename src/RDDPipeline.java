@@ -0,0 +1,18 @@
+import java.util.*;
+/*
+    The input RDD program of one sc.range(...) pipeline, as it was written
+
+    The parser records it next to the DataframePlan so the two forms can be compared.
+
+    @author Jonathan Gill
+ */
+public class RDDPipeline {
+    public long start;
+    public long end;
+    public List<RDDStage> stages;
+    public RDDStage action;
+
+    public RDDPipeline() {
+        stages = new ArrayList<>();
+    }
+}
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.util.*;
 /*
     Scanner for scala programs using the RDD API
 
@@ -21,16 +22,29 @@ import java.io.*;
     <char> --> a character between (and including) a pair of single quotation marks.
     <symbol> --> any non-space character that is not a part of other tokens
 
+    Tokens are scanned ahead into a ring buffer of LOOKAHEAD tokens, filled as far as it goes
+    whenever it runs dry, so the parser can look at the next few tokens with peek() before it
+    commits to a rule.
+
     @author Jonathan Gill
     Honorable mention to Danny Reinheimer, whose C compiler served as a reference on how to write
     a scanner
  */
 public class RDDScanner {
-    private FileInputStream fileInput;
+    public static final int LOOKAHEAD = 32; // a power of two, so positions wrap with a mask
+
+    private InputStream fileInput;
     private SimpleToken lastFoundToken;
     private boolean foundToken;
     private char lastReadChar;
     private boolean useLastReadChar;
+    private Iterator<SimpleToken> scanned; // tokens scanned ahead of time, if any
+    private boolean exitOnError = true;
+    private RDDRegularExpressions re = new RDDRegularExpressions();
+    private SimpleToken[] ahead = new SimpleToken[LOOKAHEAD]; // scanned but not yet returned
+    private int aheadStart = 0;
+    private int aheadCount = 0;
+    private boolean ended = false; // the last token has been scanned
 
     /*
         Constructor for the RDDScanner class
@@ -40,7 +54,7 @@ public class RDDScanner {
     public RDDScanner(String fileName) {
         // Try opening the file
         try {
-            fileInput = new FileInputStream(fileName);
+            fileInput = new BufferedInputStream(new FileInputStream(fileName));
         } catch(Exception e){
             System.err.println("Invallid file!");
             System.exit(1);
@@ -50,6 +64,106 @@ public class RDDScanner {
         useLastReadChar = false;
     }
 
+    /*
+        Constructor for scanning a program that is not in a file
+
+        @param input is the stream holding the program
+     */
+    public RDDScanner(InputStream input) {
+        fileInput = input;
+        lastFoundToken = new SimpleToken("", "None");
+        foundToken = false;
+        useLastReadChar = false;
+    }
+
+    /*
+        Constructor for replaying tokens that were already scanned, for example on another thread
+
+        @param tokens are the tokens returned by scanAll()
+     */
+    public RDDScanner(List<SimpleToken> tokens) {
+        scanned = tokens.iterator();
+    }
+
+    /*
+        Chooses what an invalid token does. By default it ends the program; when several programs
+        are translated in one process it only ends the token stream, so the parse fails.
+
+        @param exitOnError is false to report the error and keep running
+     */
+    public void setExitOnError(boolean exitOnError) {
+        this.exitOnError = exitOnError;
+    }
+
+    /*
+        Scans the rest of the input
+
+        @return List<SimpleToken> every remaining token, in order
+     */
+    public List<SimpleToken> scanAll() {
+        List<SimpleToken> tokens = new ArrayList<>();
+        SimpleToken token;
+        while((token = getNextToken()) != null) {
+            tokens.add(token);
+        }
+        return tokens;
+    }
+
+    /*
+        Looks at a token without consuming it
+
+        @param k is how far ahead to look, 1 for the token getNextToken() returns next
+        @return SimpleToken the token, or null if the input ends before it
+     */
+    public SimpleToken peek(int k) {
+        if(k < 1 || k > LOOKAHEAD) {
+            throw new IllegalArgumentException("can only look 1 to " + LOOKAHEAD + " tokens ahead, not " + k);
+        }
+        if(aheadCount < k) {
+            fill();
+        }
+        return (k <= aheadCount) ? ahead[(aheadStart + k - 1) & (LOOKAHEAD - 1)] : null;
+    }
+
+    /*
+        Returns the next token and moves past it
+
+        @return SimpleToken the token, or null at the end of the input
+     */
+    public SimpleToken getNextToken() {
+        if(aheadCount == 0) {
+            fill();
+            if(aheadCount == 0) {
+                return null;
+            }
+        }
+        SimpleToken token = ahead[aheadStart];
+        ahead[aheadStart] = null;
+        aheadStart = (aheadStart + 1) & (LOOKAHEAD - 1);
+        aheadCount--;
+        return token;
+    }
+
+    // scans tokens into the free part of the ring buffer until it is full or the input ends
+    private void fill() {
+        while(aheadCount < LOOKAHEAD && !ended) {
+            SimpleToken token = scanToken();
+            if(token == null) {
+                ended = true;
+                try {
+                    if(fileInput != null) {
+                        fileInput.close();
+                    }
+                } catch(IOException e) {
+                    // nothing more is read from it
+                }
+                break;
+            }
+            ahead[(aheadStart + aheadCount) & (LOOKAHEAD - 1)] = token;
+            aheadCount++;
+        }
+    }
+
     /*
         Retrieves the next character from the file and returns it.
         If the end of the file is reached, the end of file character
@@ -84,9 +198,6 @@ public class RDDScanner {
         @return The SimpleToken form of the input String
      */
     private SimpleToken tokenize(String str){
-
-        RDDRegularExpressions re = new RDDRegularExpressions();
-
         if(re.isMetaStatement(str)) {
             return new SimpleToken(str, "MetaStatement");
         }
@@ -126,7 +237,10 @@ public class RDDScanner {
 
         @return Token next token from file
      */
-    public SimpleToken getNextToken() {
+    private SimpleToken scanToken() {
+        if(scanned != null) {
+            return scanned.hasNext() ? scanned.next() : null;
+        }
         lastFoundToken = new SimpleToken("", "None"); // reset the token names when we search for new tokens
         SimpleToken currentToken = new SimpleToken("", "None");
         foundToken = false;
@@ -167,6 +281,9 @@ public class RDDScanner {
             // If we have reached the end of a line and found no tokens, report an error
             if(currentToken.type.equals("None")) {
                 System.err.println("Invalid input. Not a valid toke: " + characters);
+                if(!exitOnError) {
+                    return null;
+                }
                 System.exit(1);
             }
 
@@ -0,0 +1,22 @@
+import java.util.*;
+/*
+    One operation of the input RDD program, as it was written
+
+    type is map, filter or the name of the action that ends the pipeline. tokens holds the
+    non-space tokens of the function passed to it, e.g. i => i + 1, and is empty for actions
+    that take no function. For a filter that was folded into the range bounds, rowsAfter is
+    the number of range rows left after it.
+
+    @author Jonathan Gill
+ */
+public class RDDStage {
+    public String type;
+    public List<SimpleToken> tokens;
+    public boolean folded;
+    public long rowsAfter;
+
+    public RDDStage(String type, List<SimpleToken> tokens) {
+        this.type = type;
+        this.tokens = tokens;
+    }
+}
@@ -1,5 +1,6 @@
 //import java.util.Scanner;
 import java.io.*;
+import java.util.*;
 
 /*
     Converts a scala program using the RDD API to one using the Dataset API
@@ -7,41 +8,288 @@ import java.io.*;
     @author Jonathan Gill
  */
 public class RDDToDataframe {
+    // ends the name of the file a translation is written to, which is never read as an input
+    public static final String OUTPUT_SUFFIX = "_output_in_dataframe.scala";
+
+    private static boolean explain = false;
+    private static boolean verify = false;
+    private static long verifyLimit = 10000000;
+    private static String udfCacheFile = null;
+    // the options followed by a value
+    private static final Set<String> VALUE_OPTIONS = new HashSet<>(Arrays.asList("--verify-limit", "--cores",
+            "--rows-per-task", "--max-stage-nodes", "--max-depth", "--disable-rule", "--enable-rule", "--udf-cache",
+            "--out-dir", "--threads", "--delimiter", "--watch"));
+
     public static void main(String[] args) {
+        // separate the options from the input files
+        List<String> fileNames = new ArrayList<>();
+        boolean verified = true;
+        boolean ruleStats = false;
+        boolean udfCacheStats = false;
+        String watchDir = null;
+        String outDir = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean stream = false;
+        String delimiter = StreamCompiler.DEFAULT_DELIMITER;
+        for(int i = 0; i < args.length; i++) {
+            if(VALUE_OPTIONS.contains(args[i]) && i + 1 == args.length) {
+                System.err.println(args[i] + " needs a value");
+                System.exit(1);
+            }
+            if(args[i].equals("--explain")) {
+                explain = true;
+            } else if(args[i].equals("--verify")) {
+                verify = true;
+            } else if(args[i].equals("--verify-limit")) {
+                verifyLimit = numberOption(args[i], args[++i]);
+            } else if(args[i].equals("--cores")) {
+                PartitionPlanner.targetCores = (int) numberOption(args[i], args[++i]);
+            } else if(args[i].equals("--rows-per-task")) {
+                PartitionPlanner.targetRowsPerTask = numberOption(args[i], args[++i]);
+            } else if(args[i].equals("--max-stage-nodes")) {
+                ExpressionSplitter.maxStageNodes = (int) numberOption(args[i], args[++i]);
+            } else if(args[i].equals("--max-depth")) {
+                ExpressionSplitter.maxDepth = (int) numberOption(args[i], args[++i]);
+            } else if(args[i].equals("--disable-rule") || args[i].equals("--enable-rule")) {
+                if(!RDDOptimizer.getDefault().setEnabled(args[i + 1], args[i].equals("--enable-rule"))) {
+                    System.err.println("Unknown rule " + args[i + 1] + ", the rules are " + RDDOptimizer.getDefault().ruleNames());
+                    System.exit(1);
+                }
+                i++;
+            } else if(args[i].equals("--rule-stats")) {
+                ruleStats = true;
+            } else if(args[i].equals("--udf-cache")) {
+                udfCacheFile = args[++i];
+            } else if(args[i].equals("--udf-cache-stats")) {
+                udfCacheStats = true;
+            } else if(args[i].equals("--out-dir")) {
+                outDir = args[++i];
+            } else if(args[i].equals("--threads")) {
+                threads = (int) numberOption(args[i], args[++i]);
+            } else if(args[i].equals("--stream")) {
+                stream = true;
+            } else if(args[i].equals("--delimiter")) {
+                delimiter = args[++i];
+            } else if(args[i].equals("--length-prefixed")) {
+                delimiter = null;
+            } else if(args[i].equals("--watch")) {
+                watchDir = args[++i];
+            } else if(args[i].startsWith("--")) {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            } else {
+                fileNames.add(args[i]);
+            }
+        }
+        if(udfCacheFile != null) {
+            try {
+                UDFCache.getDefault().load(udfCacheFile);
+            } catch(IOException e) {
+                System.err.println("Could not read the UDF cache " + udfCacheFile + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        if(watchDir != null) {
+            try {
+                new SourceWatcher(watchDir).run();
+            } catch(IOException e) {
+                System.err.println("Could not watch " + watchDir + ": " + e.getMessage());
+                System.exit(1);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        if(stream) {
+            if(explain || verify || outDir != null || !fileNames.isEmpty()) {
+                System.err.println("--stream reads standard input, it takes no files, --out-dir, --explain or --verify");
+                System.exit(1);
+            }
+            // standard output carries the translations, so everything else goes to standard error.
+            // System.out never throws, so write to the descriptor itself to notice a closed pipe.
+            try {
+                verified = new StreamCompiler(System.in, new FileOutputStream(FileDescriptor.out), delimiter).run();
+            } catch(IOException e) {
+                System.err.println("Stream error: " + e.getMessage());
+                System.exit(1);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            saveUDFCache();
+            if(ruleStats) {
+                System.err.print(RDDOptimizer.getDefault().statsText());
+            }
+            if(udfCacheStats) {
+                System.err.print(UDFCache.getDefault().statsText());
+            }
+            if(!verified) {
+                System.exit(1);
+            }
+            return;
+        }
         // checks to see if we are given any arguments
-        if(args.length < 1) {
+        if(fileNames.size() < 1) {
             System.err.println("Please provide an input file to process");
             System.exit(1);
         }
-        for (String fileName: args) {
-
+        boolean batch = outDir != null;
+        for(String fileName: fileNames) {
+            batch |= new File(fileName).isDirectory() || fileName.matches(".*[*?\\[{].*");
+        }
+        if(batch) {
+            // directories and patterns can name any number of programs, so translate them in parallel
+            if(explain || verify) {
+                System.err.println("--explain and --verify need a list of files, not directories, patterns or --out-dir");
+                System.exit(1);
+            }
             try {
-                // get the file name minus the dot
-                int pos = fileName.lastIndexOf(".");
-                String newFileName = fileName.substring(0, pos) + "_output_in_dataframe.scala";
-                PrintWriter writer = new PrintWriter(newFileName, "UTF-8");
+                verified = new BatchCompiler(threads, outDir).run(fileNames);
+            } catch(IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        } else {
+            for (String fileName: fileNames) {
+                verified &= compile(fileName, null, true);
+            }
+        }
+        saveUDFCache();
+        if(ruleStats) {
+            System.out.print("\n" + RDDOptimizer.getDefault().statsText());
+        }
+        if(udfCacheStats) {
+            System.out.print("\n" + UDFCache.getDefault().statsText());
+        }
+        if(!verified) {
+            System.exit(1);
+        }
+    }
+
+    /*
+        Translates one file into its _output_in_dataframe.scala sibling
 
-                RDDParser parser = new RDDParser();
-                RDDScanner scanner = new RDDScanner(fileName);
-                if (parser.parse(scanner)) {
+        When echo is false (in --watch mode) errors are reported and the translator keeps running.
+
+        @param fileName is the input program
+        @param text is the contents of the file if it has been read already, or null
+        @param echo is true to print the input and output, false for a one line summary
+        @return boolean false if --verify found a difference or the output could not be written
+     */
+    public static boolean compile(String fileName, byte[] text, boolean echo) {
+        boolean verified = true;
+        try {
+            long begin = System.nanoTime();
+            // get the file name minus the dot
+            int pos = fileName.lastIndexOf(".");
+            String newFileName = fileName.substring(0, pos) + OUTPUT_SUFFIX;
+
+            RDDParser parser = new RDDParser();
+            parser.setEcho(echo);
+            RDDScanner scanner = (text == null) ? new RDDScanner(fileName)
+                    : new RDDScanner(new ByteArrayInputStream(text));
+            scanner.setExitOnError(echo); // --watch keeps running after a bad edit
+            if (parser.parse(scanner)) {
+                String out = parser.getOutput();
+                // written only now, so a program that does not parse keeps its last translation
+                PrintWriter writer = new PrintWriter(newFileName, "UTF-8");
+                writer.print(out);
+                writer.close();
+                if(echo) {
                     System.out.println("\nParsing was successful");
                     System.out.println("File Output:");
-                    String out = parser.getOutput();
-                    writer.print(out);
                     System.out.println(out);
-                    // parser.printUDFSymbolTables();
                 } else {
-                    System.out.println("\nParsing error");
+                    System.out.println("Translated " + fileName + " (" + (System.nanoTime() - begin) / 1000000 + " ms)");
                 }
-
-                writer.close();
-            } catch (FileNotFoundException e) {
-                System.err.println("Could not create output file");
-                System.exit(1);
-            } catch (UnsupportedEncodingException e) {
-                System.err.println("Error encoding output file.  Not my fault though");
+                List<RDDPipeline> pipelines = parser.getPipelines();
+                List<DataframePlan> plans = parser.getPlans();
+                for(int i = 0; i < plans.size(); i++) {
+                    String which = (plans.size() > 1) ? " (pipeline " + (i + 1) + ")" : "";
+                    if(explain) {
+                        System.out.println("\nExplain" + which + ":");
+                        System.out.print(PipelineExplainer.explain(pipelines.get(i), plans.get(i)));
+                    }
+                    if(verify) {
+                        if(plans.size() > 1) {
+                            System.out.print("\nPipeline " + (i + 1) + ":");
+                        }
+                        verified &= verify(pipelines.get(i), plans.get(i), verifyLimit);
+                    }
+                }
+            } else {
+                System.out.println(echo ? "\nParsing error" : "\nParsing error in " + fileName);
+            }
+        } catch (FileNotFoundException e) {
+            System.err.println("Could not create output file " + e.getMessage());
+            if(echo) {
                 System.exit(1);
             }
+            return false;
+        } catch (UnsupportedEncodingException e) {
+            System.err.println("Error encoding output file.  Not my fault though");
+            System.exit(1);
+        }
+        return verified;
+    }
+
+    /*
+        Writes the UDF cache back to the file given with --udf-cache, if there is one
+     */
+    public static void saveUDFCache() {
+        if(udfCacheFile == null) {
+            return;
+        }
+        try {
+            UDFCache.getDefault().save(udfCacheFile);
+        } catch(IOException e) {
+            System.err.println("Could not write the UDF cache " + udfCacheFile + ": " + e.getMessage());
+        }
+    }
+
+    /*
+        Runs the RDD program and its translation in the JVM and compares the results
+
+        @param rdd is the input program
+        @param plan is its translation
+        @param limit is the largest range that is checked
+        @return boolean false if the two programs give different results
+     */
+    private static boolean verify(RDDPipeline rdd, DataframePlan plan, long limit) {
+        if(rdd.end - rdd.start > limit) {
+            System.out.println("\nVerification skipped: the range has more than " + limit + " rows");
+            return true;
+        }
+        long begin = System.nanoTime();
+        PipelineResult expected = RDDInterpreter.run(rdd);
+        PipelineResult actual = DataframeInterpreter.run(plan);
+        long millis = (System.nanoTime() - begin) / 1000000;
+        String difference = expected.difference(actual);
+        if(difference == null) {
+            System.out.println("\nVerification passed (" + millis + " ms): " + expected);
+            return true;
+        }
+        System.out.println("\nVerification FAILED (" + millis + " ms): " + difference);
+        return false;
+    }
+
+    /*
+        Reads the positive number given to a command line option
+
+        @param option is the name of the option
+        @param value is the text following it
+        @return long the number
+     */
+    private static long numberOption(String option, String value) {
+        try {
+            long number = Long.parseLong(value);
+            if(number > 0 && number <= Integer.MAX_VALUE) {
+                return number;
+            }
+        } catch(NumberFormatException e) {
+            // reported below
         }
+        System.err.println(option + " needs a positive number, not " + value);
+        System.exit(1);
+        return 0;
     }
 }
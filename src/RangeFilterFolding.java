@@ -0,0 +1,75 @@
+/*
+    Folds filters on the raw range value into the spark.range bounds, so the rows they
+    remove are never generated
+
+    Only simple bounds of the form _1 <Comp> <number> (or <number> <Comp> _1) that come
+    before any map are folded. The RDD filter a folded where came from is marked, with the
+    number of range rows left after it, for --explain.
+
+    @author Jonathan Gill
+ */
+public class RangeFilterFolding implements OptimizerRule {
+
+    public String getName() {
+        return "RangeFilterFolding";
+    }
+
+    public boolean apply(DataframePlan plan) {
+        boolean changed = false;
+        // stage 0 renames id to _1, the stages up to the first projection after it see the raw range
+        for(int i = 1; i < plan.stages.size() && plan.stages.get(i).type.equals("where"); ) {
+            DataframeStage stage = plan.stages.get(i);
+            if(fold(plan, stage.columns.get(0))) {
+                plan.stages.remove(i);
+                if(stage.source != null) {
+                    stage.source.folded = true;
+                    stage.source.rowsAfter = plan.end - plan.start;
+                }
+                changed = true;
+            } else {
+                i++;
+            }
+        }
+        return changed;
+    }
+
+    /*
+        Narrows the range to the rows that pass a bound
+
+        @param plan is the plan whose range is narrowed
+        @param predicate is the condition of the where
+        @return boolean true if the filter was folded into the range
+     */
+    private static boolean fold(DataframePlan plan, SQLExpr predicate) {
+        if(!predicate.isColumnBound() || predicate.word.equals("!=")) {
+            return false;
+        }
+        SQLExpr bound = predicate.columnFirst();
+        String comp = bound.word;
+        long k;
+        try {
+            k = Long.parseLong(bound.args[1].word);
+        } catch(NumberFormatException e) {
+            return false;
+        }
+        if(k == Long.MAX_VALUE) { // k + 1 below would overflow
+            return false;
+        }
+        if(comp.equals(">")) {
+            plan.start = Math.max(plan.start, k + 1);
+        } else if(comp.equals(">=")) {
+            plan.start = Math.max(plan.start, k);
+        } else if(comp.equals("<")) {
+            plan.end = Math.min(plan.end, k);
+        } else if(comp.equals("<=")) {
+            plan.end = Math.min(plan.end, k + 1);
+        } else { // ==
+            plan.start = Math.max(plan.start, k);
+            plan.end = Math.min(plan.end, k + 1);
+        }
+        if(plan.end < plan.start) { // nothing survives the filters
+            plan.end = plan.start;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,375 @@
+import java.lang.ref.WeakReference;
+import java.util.*;
+/*
+    Expression tree for the Spark SQL fragments emitted inside selectExpr and where
+
+    Possible node types are:
+        Column      word is the column name (id, _1, _2, ...)
+        Number      word is the literal text
+        Op          word is one of + - * % and args holds the two operands
+        Comp        word is one of == != < > <= >= and args holds the two operands
+        If          args holds the condition, the then branch and the else branch
+        Cast        word is the target type (smallint, int or bigint), args holds the operand
+
+    Nodes are hash-consed: make() returns the node already built for the same type, word and
+    children if there is one, so equal expressions are the same object and a subtree used in
+    several places (a val used twice, a column read by several stages) is stored once. That
+    makes the tree a DAG, and nodes can never be changed: a rewrite builds new nodes with make()
+    and shares every subtree it leaves alone. Two nodes are equal exactly when they are ==.
+    The table only holds weak references, so nodes no plan uses any more are collected.
+    Code that walks a tree should remember what it found for each node it has been to (in an
+    IdentityHashMap), since a shared node is reached once along every path to it and a chain of
+    vals that each use the one before twice is exponentially bigger as a tree than as a DAG.
+
+    parse() reads the SQL text of an expression, for example a saved UDFCache entry, and
+    toString() prints it back using only the parentheses the precedence rules require.
+
+    @author Jonathan Gill
+ */
+public class SQLExpr {
+    private static final Map<SQLExpr, WeakReference<SQLExpr>> interned =
+            Collections.synchronizedMap(new WeakHashMap<SQLExpr, WeakReference<SQLExpr>>());
+
+    public final String type;
+    public final String word;
+    public final SQLExpr[] args; // shared with every plan that uses the node, never assign to it
+    private final int hash;
+    private final boolean readsColumn; // worked out from the children, which are built first
+
+    private SQLExpr(String type, String word, SQLExpr[] args) {
+        this.type = type;
+        this.word = word;
+        this.args = args;
+        int hash = type.hashCode() * 31 + word.hashCode();
+        boolean readsColumn = type.equals("Column");
+        for(SQLExpr arg: args) {
+            hash = hash * 31 + arg.hash;
+            readsColumn |= arg.readsColumn;
+        }
+        this.hash = hash;
+        this.readsColumn = readsColumn;
+    }
+
+    /*
+        Returns the node with the given contents, building it only if it does not exist yet
+
+        @param type is the kind of node
+        @param word is its column name, literal, operator or target type
+        @param args are its operands, themselves built with make()
+        @return SQLExpr the shared node
+     */
+    public static SQLExpr make(String type, String word, SQLExpr... args) {
+        SQLExpr node = new SQLExpr(type, word, args.clone());
+        synchronized(interned) {
+            WeakReference<SQLExpr> existing = interned.get(node);
+            SQLExpr shared = (existing == null) ? null : existing.get();
+            if(shared != null) {
+                return shared;
+            }
+            interned.put(node, new WeakReference<>(node));
+        }
+        return node;
+    }
+
+    /*
+        Returns this node with other operands, for rewrites
+
+        @param newArgs are the operands to use
+        @return SQLExpr the shared node, this one if the operands are the same
+     */
+    public SQLExpr with(SQLExpr... newArgs) {
+        if(Arrays.equals(args, newArgs)) { // the operands are interned, so this compares references
+            return this;
+        }
+        return make(type, word, newArgs);
+    }
+
+    /*
+        Compares the contents of two nodes, for the table make() looks nodes up in. The children
+        are compared with ==, since they are interned already.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if(this == other) {
+            return true;
+        }
+        if(!(other instanceof SQLExpr)) {
+            return false;
+        }
+        SQLExpr node = (SQLExpr) other;
+        if(hash != node.hash || !type.equals(node.type) || !word.equals(node.word) || args.length != node.args.length) {
+            return false;
+        }
+        for(int i = 0; i < args.length; i++) {
+            if(args[i] != node.args[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /*
+        Builds the tree for a SQL fragment produced by the parser
+
+        @param sql is the SQL text to convert
+        @return SQLExpr root of the tree, or null if the text is not a valid fragment
+     */
+    public static SQLExpr parse(String sql) {
+        Reader reader = new Reader();
+        reader.text = sql;
+        reader.pos = 0;
+        SQLExpr expr = reader.comparison();
+        reader.skipSpace();
+        if(expr == null || reader.pos != sql.length()) {
+            return null;
+        }
+        return expr;
+    }
+
+    /*
+        Checks to see if this node compares a column against a number literal
+
+        @return boolean indicating if it is a comparison between a column and a literal
+     */
+    public boolean isColumnBound() {
+        if(!type.equals("Comp")) {
+            return false;
+        }
+        return (args[0].type.equals("Column") && args[1].type.equals("Number"))
+                || (args[0].type.equals("Number") && args[1].type.equals("Column"));
+    }
+
+    /*
+        Rewrites a column bound so the column is on the left, e.g. 10 < _1 becomes _1 > 10
+
+        @return SQLExpr the same comparison with the column first
+     */
+    public SQLExpr columnFirst() {
+        if(args[0].type.equals("Column")) {
+            return this;
+        }
+        String comp = word;
+        if(comp.startsWith("<")) {
+            comp = comp.replace("<", ">");
+        } else if(comp.startsWith(">")) {
+            comp = comp.replace(">", "<");
+        }
+        return make("Comp", comp, args[1], args[0]);
+    }
+
+    /*
+        Checks to see if the expression reads any column
+
+        @return boolean false if the expression only contains literals
+     */
+    public boolean hasColumn() {
+        return readsColumn;
+    }
+
+    /*
+        Prints the expression as Spark SQL
+
+        @return String SQL text of the expression
+     */
+    @Override
+    public String toString() {
+        return toString(new IdentityHashMap<SQLExpr, String>());
+    }
+
+    // printed holds the text of the nodes printed so far, so each shared node is printed once
+    private String toString(Map<SQLExpr, String> printed) {
+        String text = printed.get(this);
+        if(text == null) {
+            text = print(printed);
+            printed.put(this, text);
+        }
+        return text;
+    }
+
+    private String print(Map<SQLExpr, String> printed) {
+        if(type.equals("Column") || type.equals("Number")) {
+            return word;
+        } else if(type.equals("If")) {
+            return "if(" + args[0].toString(printed) + "," + args[1].toString(printed) + ","
+                    + args[2].toString(printed) + ")";
+        } else if(type.equals("Cast")) {
+            return "cast(" + args[0].toString(printed) + " as " + word + ")";
+        }
+        // binary operator, parenthesize the operands that bind looser than we do
+        String left = args[0].toString(printed);
+        String right = args[1].toString(printed);
+        if(args[0].precedence() < precedence()) {
+            left = "(" + left + ")";
+        }
+        if(args[1].precedence() <= precedence()) {
+            right = "(" + right + ")";
+        }
+        return left + word + right;
+    }
+
+    /*
+        Binding strength of the node when it is printed
+
+        @return int larger numbers bind tighter
+     */
+    private int precedence() {
+        if(type.equals("Comp")) {
+            return 1;
+        } else if(type.equals("Op")) {
+            return (word.equals("+") || word.equals("-")) ? 2 : 3;
+        }
+        return 4;
+    }
+
+    // reads the SQL text given to parse()
+    private static class Reader {
+        private String text;
+        private int pos;
+
+        /*
+            The following functions implement a small recursive-decent parser over the SQL text.
+
+            <Comparison>    ::= <Sum> [<Comp> <Sum>]
+            <Sum>           ::= <Product> {(+|-) <Product>}
+            <Product>       ::= <Atom> {(*|%) <Atom>}
+            <Atom>          ::= <number> | <identifier> | (<Comparison>)
+                              | if(<Comparison>,<Comparison>,<Comparison>)
+                              | cast(<Comparison> as <identifier>)
+
+            @return SQLExpr the subtree that was read, or null if the text did not match
+         */
+        private SQLExpr comparison() {
+            SQLExpr left = sum();
+            if(left == null) {
+                return null;
+            }
+            String[] comps = {"==", "!=", "<=", ">=", "<", ">"};
+            for(String comp: comps) {
+                if(accept(comp)) {
+                    SQLExpr right = sum();
+                    if(right == null) {
+                        return null;
+                    }
+                    return make("Comp", comp, left, right);
+                }
+            }
+            return left;
+        }
+
+        private SQLExpr sum() {
+            SQLExpr left = product();
+            while(left != null) {
+                String op;
+                if(accept("+")) {
+                    op = "+";
+                } else if(accept("-")) {
+                    op = "-";
+                } else {
+                    break;
+                }
+                SQLExpr right = product();
+                if(right == null) {
+                    return null;
+                }
+                left = make("Op", op, left, right);
+            }
+            return left;
+        }
+
+        private SQLExpr product() {
+            SQLExpr left = atom();
+            while(left != null) {
+                String op;
+                if(accept("*")) {
+                    op = "*";
+                } else if(accept("%")) {
+                    op = "%";
+                } else {
+                    break;
+                }
+                SQLExpr right = atom();
+                if(right == null) {
+                    return null;
+                }
+                left = make("Op", op, left, right);
+            }
+            return left;
+        }
+
+        private SQLExpr atom() {
+            skipSpace();
+            if(pos >= text.length()) {
+                return null;
+            }
+            char ch = text.charAt(pos);
+            if(ch >= '0' && ch <= '9') {
+                int begin = pos;
+                while(pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+                return make("Number", text.substring(begin, pos));
+            } else if(Character.isLetter(ch) || ch == '_') {
+                int begin = pos;
+                while(pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                    pos++;
+                }
+                String name = text.substring(begin, pos);
+                if(name.equals("if") && accept("(")) {
+                    SQLExpr cond = comparison();
+                    if(cond != null && accept(",")) {
+                        SQLExpr then = comparison();
+                        if(then != null && accept(",")) {
+                            SQLExpr otherwise = comparison();
+                            if(otherwise != null && accept(")")) {
+                                return make("If", "if", cond, then, otherwise);
+                            }
+                        }
+                    }
+                    return null;
+                }
+                if(name.equals("cast") && accept("(")) {
+                    SQLExpr inner = comparison();
+                    if(inner != null && accept("as")) {
+                        skipSpace();
+                        begin = pos;
+                        while(pos < text.length() && Character.isLetter(text.charAt(pos))) {
+                            pos++;
+                        }
+                        String target = text.substring(begin, pos);
+                        if(accept(")")) {
+                            return make("Cast", target, inner);
+                        }
+                    }
+                    return null;
+                }
+                return make("Column", name);
+            } else if(accept("(")) {
+                SQLExpr inner = comparison();
+                if(inner != null && accept(")")) {
+                    return inner;
+                }
+            }
+            return null;
+        }
+
+        private boolean accept(String symbol) {
+            skipSpace();
+            if(text.startsWith(symbol, pos)) {
+                pos += symbol.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void skipSpace() {
+            while(pos < text.length() && text.charAt(pos) == ' ') {
+                pos++;
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.*;
+/*
+    Removes if expressions whose outcome is known when the program is compiled
+
+        if(<literal comparison>, a, b)      becomes a or b
+        if(c, a, a)                         becomes a
+        if(c, if(c, a, b), d)               becomes if(c, a, d), and likewise in the else branch
+
+    The last two are skipped when c contains a %, since dropping it would also drop a
+    division by zero the program might fail on. Each shared node is simplified once.
+
+    @author Jonathan Gill
+ */
+public class SimplifyIf implements OptimizerRule {
+    public String getName() {
+        return "SimplifyIf";
+    }
+
+    public boolean apply(DataframePlan plan) {
+        boolean changed = false;
+        Map<SQLExpr, SQLExpr> simplified = new IdentityHashMap<>();
+        for(DataframeStage stage: plan.stages) {
+            for(int c = 0; c < stage.columns.size(); c++) {
+                SQLExpr before = stage.columns.get(c);
+                stage.columns.set(c, simplify(before, simplified));
+                changed |= stage.columns.get(c) != before; // nodes are interned, so == is equality
+            }
+        }
+        return changed;
+    }
+
+    private SQLExpr simplify(SQLExpr expr, Map<SQLExpr, SQLExpr> simplified) {
+        SQLExpr result = simplified.get(expr);
+        if(result == null) {
+            result = simplifyNode(expr, simplified);
+            simplified.put(expr, result);
+        }
+        return result;
+    }
+
+    private SQLExpr simplifyNode(SQLExpr expr, Map<SQLExpr, SQLExpr> simplified) {
+        SQLExpr[] args = new SQLExpr[expr.args.length];
+        for(int i = 0; i < args.length; i++) {
+            args[i] = simplify(expr.args[i], simplified);
+        }
+        expr = expr.with(args);
+        if(!expr.type.equals("If")) {
+            return expr;
+        }
+        SQLExpr cond = expr.args[0];
+        if(cond.type.equals("Comp") && ConstantFolding.isLiteral(cond.args)) {
+            return ConstantFolding.compare(cond) ? expr.args[1] : expr.args[2];
+        }
+        if(hasMod(cond, Collections.newSetFromMap(new IdentityHashMap<SQLExpr, Boolean>()))) {
+            return expr;
+        }
+        if(args[1] == args[2]) {
+            return args[1];
+        }
+        for(int branch = 1; branch <= 2; branch++) {
+            SQLExpr inner = args[branch];
+            if(inner.type.equals("If") && inner.args[0] == cond) {
+                // inside the then branch c is true, inside the else branch it is false
+                args[branch] = inner.args[branch];
+            }
+        }
+        return expr.with(args);
+    }
+
+    // seen holds the nodes already known to contain no %
+    private static boolean hasMod(SQLExpr expr, Set<SQLExpr> seen) {
+        if(expr.type.equals("Op") && expr.word.equals("%")) {
+            return true;
+        }
+        for(SQLExpr arg: expr.args) {
+            if(seen.add(arg) && hasMod(arg, seen)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
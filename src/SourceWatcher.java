@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/*
+    The --watch mode of RDDToDataframe
+
+    Every directory under the root is registered with a WatchService, including the ones
+    created later. All the .scala programs are translated once at the start, then only the
+    ones that change. Editors tend to save a file in several steps, so after the first event
+    the watcher keeps collecting events until none has come for DEBOUNCE_MILLIS, and then
+    translates each changed file once. A file whose contents are the same as when it was last
+    translated is skipped, and the _output_in_dataframe.scala files the translator writes are
+    never treated as inputs. Everything runs in the same JVM, so the translator stays loaded
+    and compiled by the JIT between changes.
+
+    @author Jonathan Gill
+ */
+public class SourceWatcher {
+    public static final long DEBOUNCE_MILLIS = 200;
+
+    private Path root;
+    private WatchService watcher;
+    private Map<WatchKey, Path> directories = new HashMap<>();
+    private Map<Path, Long> translated = new HashMap<>(); // checksum of the contents last translated
+
+    /*
+        Constructor for the SourceWatcher class
+
+        @param root is the directory tree to watch
+     */
+    public SourceWatcher(String root) throws IOException {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+        if(!Files.isDirectory(this.root)) {
+            throw new IOException("not a directory");
+        }
+        watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    /*
+        Translates every program, then the changed ones, until the process is stopped
+     */
+    public void run() throws IOException, InterruptedException {
+        Set<Path> changed = new TreeSet<>();
+        register(root, changed);
+        translate(changed);
+        System.out.println("\nWatching " + root + " for changes (Ctrl-C to stop)");
+        while(true) {
+            changed.clear();
+            WatchKey key = watcher.take();
+            do {
+                collect(key, changed);
+            } while((key = watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+            translate(changed);
+        }
+    }
+
+    /*
+        Watches a directory and the ones under it
+
+        @param directory is the top of the tree to register
+        @param sources collects the programs found in it
+     */
+    private void register(Path directory, final Set<Path> sources) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if(isSource(file)) {
+                    sources.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /*
+        Adds the programs an event key reports on to the changed set
+
+        @param key is the key that was signalled
+        @param changed collects the programs to translate
+     */
+    private void collect(WatchKey key, Set<Path> changed) throws IOException {
+        Path dir = directories.get(key);
+        for(WatchEvent<?> event: key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) { // events were lost, look at everything
+                register(root, changed);
+                continue;
+            }
+            if(dir == null) {
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                translated.remove(path);
+                changed.remove(path);
+            } else if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                register(path, changed);
+            } else if(isSource(path)) {
+                changed.add(path);
+            }
+        }
+        if(!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    private void translate(Set<Path> changed) {
+        for(Path path: changed) {
+            byte[] text;
+            try {
+                text = Files.readAllBytes(path);
+            } catch(IOException e) { // removed since the event
+                continue;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(text);
+            long checksum = crc.getValue();
+            Long last = translated.get(path);
+            if(last == null || last != checksum) {
+                translated.put(path, checksum);
+                // translate what was read, the file may have changed or gone again since
+                RDDToDataframe.compile(path.toString(), text, false);
+            }
+        }
+        RDDToDataframe.saveUDFCache();
+    }
+
+    private static boolean isSource(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(".scala") && !name.endsWith(RDDToDataframe.OUTPUT_SUFFIX) && Files.isRegularFile(path);
+    }
+}
@@ -0,0 +1,238 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    The --stream mode of RDDToDataframe
+
+    Reads any number of programs from an input stream and writes their translations to an
+    output stream in the same order, so the compiler can sit in a shell pipeline or behind a
+    code-generation service without temporary files. Programs are framed one of two ways:
+
+        delimited           the program text, then a line holding only the delimiter (%% by
+                            default); the last program may end at the end of the input
+        length-prefixed     a line holding the length of the program in bytes, then the program
+
+    Each translation is written with the same framing as its input. A program that does not
+    parse gets an empty translation, and the error goes to standard error with its position
+    in the stream.
+
+    Three threads do the work: the reader splits the input into programs and scans them into
+    tokens, the parser parses and optimizes them, and the writer (the thread that called run)
+    formats the plans as scala and writes them out. They hand programs to each other through
+    ArrayBlockingQueues of QUEUE_SIZE, so a stage that falls behind blocks the ones before it
+    and no more than a few queues worth of programs is ever held in memory. The stages are
+    single threads reading FIFO queues, so the order of the output is the order of the input.
+
+    @author Jonathan Gill
+ */
+public class StreamCompiler {
+    public static final int QUEUE_SIZE = 64;
+    public static final String DEFAULT_DELIMITER = "%%";
+
+    private InputStream input;
+    private OutputStream output;
+    private String delimiter;
+    private boolean lengthPrefixed;
+    private BlockingQueue<Program> scanned = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private BlockingQueue<Program> parsed = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private volatile boolean failed = false;
+
+    // a program on its way through the stages; END follows the last one
+    private static class Program {
+        int number;
+        List<SimpleToken> tokens;
+        RDDParser parser; // null if the program could not be parsed
+    }
+
+    private static final Program END = new Program();
+
+    /*
+        Constructor for the StreamCompiler class
+
+        @param input is where the programs are read from
+        @param output is where the translations are written
+        @param delimiter is the line that separates programs, or null if they are length-prefixed
+     */
+    public StreamCompiler(InputStream input, OutputStream output, String delimiter) {
+        this.input = input;
+        this.output = output;
+        this.delimiter = delimiter;
+        lengthPrefixed = (delimiter == null);
+    }
+
+    /*
+        Translates programs until the input ends
+
+        @return boolean false if some program could not be translated
+     */
+    public boolean run() throws IOException, InterruptedException {
+        final IOException[] error = new IOException[1];
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    read();
+                } catch(IOException e) {
+                    error[0] = e;
+                } catch(InterruptedException e) {
+                    return;
+                }
+                put(scanned, END);
+            }
+        }, "stream-reader");
+        Thread parser = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    parse();
+                } catch(InterruptedException e) {
+                    return;
+                }
+                put(parsed, END);
+            }
+        }, "stream-parser");
+        reader.setDaemon(true); // may be blocked reading when the writer fails
+        parser.setDaemon(true);
+        reader.start();
+        parser.start();
+        try {
+            write();
+        } catch(IOException e) { // nobody reads the output any more, so stop reading the input
+            reader.interrupt();
+            parser.interrupt();
+            throw e; // the reader may be blocked reading, it is a daemon so do not wait for it
+        }
+        parser.join();
+        reader.join();
+        if(error[0] != null) {
+            throw error[0];
+        }
+        return !failed;
+    }
+
+    // the reader thread: splits the input into programs and scans each one
+    private void read() throws IOException, InterruptedException {
+        // ISO-8859-1 maps each byte to one char, the same as the file scanner does
+        BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.ISO_8859_1));
+        String text;
+        int number = 0;
+        while((text = lengthPrefixed ? readPrefixed(in) : readDelimited(in)) != null) {
+            Program program = new Program();
+            program.number = ++number;
+            RDDScanner scanner = new RDDScanner(new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1)));
+            scanner.setExitOnError(false);
+            program.tokens = scanner.scanAll();
+            scanned.put(program);
+        }
+    }
+
+    /*
+        Reads the next program up to its delimiter line
+
+        @param in is the input
+        @return String the program text, or null at the end of the input
+     */
+    private String readDelimited(BufferedReader in) throws IOException {
+        StringBuilder text = new StringBuilder();
+        String line;
+        boolean any = false;
+        while((line = in.readLine()) != null) {
+            if(line.equals(delimiter)) {
+                return text.toString();
+            }
+            text.append(line).append('\n');
+            any = true;
+        }
+        return any ? text.toString() : null; // nothing after the last delimiter is not a program
+    }
+
+    /*
+        Reads the next length line and the program after it
+
+        @param in is the input
+        @return String the program text, or null at the end of the input
+     */
+    private String readPrefixed(BufferedReader in) throws IOException {
+        String header = in.readLine();
+        while(header != null && header.trim().isEmpty()) {
+            header = in.readLine();
+        }
+        if(header == null) {
+            return null;
+        }
+        int length;
+        try {
+            length = Integer.parseInt(header.trim());
+        } catch(NumberFormatException e) {
+            throw new IOException("expected the length of a program, not " + header);
+        }
+        if(length < 0) {
+            throw new IOException("expected the length of a program, not " + header);
+        }
+        char[] text = new char[length];
+        for(int read = 0; read < length; ) {
+            int count = in.read(text, read, length - read);
+            if(count < 0) {
+                throw new IOException("the input ended inside a program of " + length + " bytes");
+            }
+            read += count;
+        }
+        return new String(text);
+    }
+
+    // the parser thread: parses and optimizes each scanned program
+    private void parse() throws InterruptedException {
+        Program program;
+        while((program = scanned.take()) != END) {
+            RDDParser parser = new RDDParser();
+            parser.setEcho(false);
+            try {
+                if(parser.parse(new RDDScanner(program.tokens))) {
+                    program.parser = parser;
+                }
+            } catch(RuntimeException e) { // one bad program must not stop the stream
+                System.err.println("Error in program " + program.number + ": " + e);
+            }
+            program.tokens = null; // only the plans are needed from here on
+            parsed.put(program);
+        }
+    }
+
+    // the writer thread: formats each plan as scala and writes it with the input's framing
+    private void write() throws IOException, InterruptedException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.ISO_8859_1));
+        Program program;
+        while((program = parsed.take()) != END) {
+            String text = "";
+            if(program.parser != null) {
+                text = program.parser.getOutput();
+                if(!text.endsWith("\n")) {
+                    text += "\n";
+                }
+            } else {
+                System.err.println("Parsing error in program " + program.number);
+                failed = true;
+            }
+            if(lengthPrefixed) {
+                out.write(text.getBytes(StandardCharsets.ISO_8859_1).length + "\n");
+                out.write(text);
+            } else {
+                out.write(text);
+                out.write(delimiter + "\n");
+            }
+            if(parsed.isEmpty()) { // let whoever reads the output see everything finished so far
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    // puts the end marker on a queue, unless the thread is told to stop first
+    private static void put(BlockingQueue<Program> queue, Program program) {
+        try {
+            queue.put(program);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+    Remembers the translation of the functions passed to map and filter
+
+    The same small functions (i => i % 2, r => r._1 + r._2) turn up in most programs, so the
+    parser looks each one up here before translating it. The key is the kind of function and
+    its tokens with the parameter and the names declared by val renamed in order of first use,
+    so i => i % 2 and x => x % 2 share an entry. The value is the translated columns, a single
+    predicate for a filter. SQLExpr nodes never change, so a hit hands out the cached trees
+    themselves and the plans that use them share their nodes.
+
+    The cache holds the maxEntries functions used most recently, and can be saved to a file
+    and loaded again so later runs start warm. The file stores the expression DAG rather than
+    the printed SQL, which can be exponentially longer (a chain of vals that each use the one
+    before twice): every distinct node is written once, after its children, and the entries
+    refer to their columns by node number. It is shared by every parser in the process, so all
+    of its methods are synchronized.
+
+    @author Jonathan Gill
+ */
+public class UDFCache {
+    public static int maxEntries = 10000;
+    private static UDFCache defaultCache;
+
+    private long hits = 0;
+    private long misses = 0;
+    private LinkedHashMap<String, List<SQLExpr>> entries = new LinkedHashMap<String, List<SQLExpr>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<SQLExpr>> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    /*
+        Returns the cache the parsers use unless they are given another one
+
+        @return UDFCache the shared cache
+     */
+    public static synchronized UDFCache getDefault() {
+        if(defaultCache == null) {
+            defaultCache = new UDFCache();
+        }
+        return defaultCache;
+    }
+
+    /*
+        Builds the key of a function
+
+        @param kind is map or filter
+        @param tokens are the non-space tokens of the function, starting with its parameter
+        @return String the key, or null if the function cannot be cached
+     */
+    public static String key(String kind, List<SimpleToken> tokens) {
+        Map<String, String> names = new HashMap<>();
+        StringBuilder key = new StringBuilder(kind).append(':');
+        for(int i = 0; i < tokens.size(); i++) {
+            SimpleToken token = tokens.get(i);
+            boolean bound = (i == 0) || (i > 0 && tokens.get(i - 1).word.equals("val"));
+            if(bound && token.type.equals("Identifier")) {
+                if(token.word.equals("else")) { // renaming it would also rename the keyword
+                    return null;
+                }
+                if(!names.containsKey(token.word)) {
+                    names.put(token.word, "$" + names.size());
+                }
+            }
+            String name = names.get(token.word);
+            key.append(' ').append((name != null && token.type.equals("Identifier")) ? name : token.word);
+        }
+        return key.toString();
+    }
+
+    /*
+        Looks up the translation of a function
+
+        @param key is the key of the function
+        @return List<SQLExpr> its columns, or null if it has not been translated yet
+     */
+    public synchronized List<SQLExpr> get(String key) {
+        List<SQLExpr> columns = entries.get(key);
+        if(columns == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new ArrayList<>(columns);
+    }
+
+    /*
+        Stores the translation of a function
+
+        @param key is the key of the function
+        @param columns are its translated columns
+     */
+    public synchronized void put(String key, List<SQLExpr> columns) {
+        entries.put(key, new ArrayList<>(columns));
+    }
+
+    /*
+        Adds the entries saved in a file, if it exists. Lines that cannot be read are skipped,
+        and so are the entries that use them.
+
+        The lines of the file are
+            N <type> <word> <children>      node number n, for the nth N line counted from 0,
+                                            with the numbers of its children separated by spaces
+            E <key> <columns>               an entry, with the node numbers of its columns
+        with the fields separated by tabs. A line holding a key and the SQL of each column, as
+        files written before the DAG form have, is read too.
+
+        @param fileName is the file written by save()
+     */
+    public synchronized void load(String fileName) throws IOException {
+        File file = new File(fileName);
+        if(!file.exists()) {
+            return;
+        }
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            List<SQLExpr> nodes = new ArrayList<>();
+            String line;
+            while((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if(fields[0].equals("N")) {
+                    nodes.add((fields.length == 4) ? readNode(fields, nodes) : null); // keeps the numbering
+                } else if(fields[0].equals("E")) {
+                    if(fields.length == 3) {
+                        List<SQLExpr> columns = lookupAll(fields[2], nodes);
+                        if(columns != null && !columns.isEmpty()) {
+                            entries.put(fields[1], columns);
+                        }
+                    }
+                } else {
+                    List<SQLExpr> columns = new ArrayList<>();
+                    for(int i = 1; i < fields.length; i++) {
+                        SQLExpr column = SQLExpr.parse(fields[i]);
+                        if(column == null) {
+                            columns = null;
+                            break;
+                        }
+                        columns.add(column);
+                    }
+                    if(columns != null && !columns.isEmpty()) {
+                        entries.put(fields[0], columns);
+                    }
+                }
+            }
+        }
+    }
+
+    // builds the node of an N line, or returns null if the line is not valid
+    private static SQLExpr readNode(String[] fields, List<SQLExpr> nodes) {
+        List<SQLExpr> args = lookupAll(fields[3], nodes);
+        if(args == null || fields[1].isEmpty()) {
+            return null;
+        }
+        return SQLExpr.make(fields[1], fields[2], args.toArray(new SQLExpr[args.size()]));
+    }
+
+    /*
+        Finds the nodes a list of node numbers refers to
+
+        @param numbers are the node numbers separated by spaces
+        @param nodes are the nodes read so far
+        @return List<SQLExpr> the nodes, or null if some number does not name a valid node
+     */
+    private static List<SQLExpr> lookupAll(String numbers, List<SQLExpr> nodes) {
+        List<SQLExpr> found = new ArrayList<>();
+        if(numbers.isEmpty()) {
+            return found;
+        }
+        for(String number: numbers.split(" ")) {
+            int n;
+            try {
+                n = Integer.parseInt(number);
+            } catch(NumberFormatException e) {
+                return null;
+            }
+            if(n < 0 || n >= nodes.size() || nodes.get(n) == null) {
+                return null;
+            }
+            found.add(nodes.get(n));
+        }
+        return found;
+    }
+
+    /*
+        Writes the entries to a file in the form load() reads, least recently used first. The
+        file is written under another name and then moved over the old one, so a run that is
+        stopped while saving leaves the old file whole.
+
+        @param fileName is the file to write
+     */
+    public synchronized void save(String fileName) throws IOException {
+        Path target = Paths.get(fileName).toAbsolutePath();
+        Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        temporary.toFile().setReadable(true, false); // temporary files are private, the cache need not be
+        try {
+            try(PrintWriter out = new PrintWriter(Files.newBufferedWriter(temporary, StandardCharsets.UTF_8))) {
+                Map<SQLExpr, Integer> numbers = new IdentityHashMap<>();
+                for(Map.Entry<String, List<SQLExpr>> entry: entries.entrySet()) {
+                    StringBuilder columns = new StringBuilder();
+                    for(SQLExpr column: entry.getValue()) {
+                        columns.append(columns.length() == 0 ? "" : " ").append(writeNode(column, numbers, out));
+                    }
+                    out.print("E\t" + entry.getKey() + "\t" + columns + "\n");
+                }
+                if(out.checkError()) {
+                    throw new IOException("could not write " + temporary);
+                }
+            }
+            try {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch(AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /*
+        Writes the N lines of a node and of the children not written yet
+
+        @param numbers holds the number of every node written so far
+        @return int the number of the node
+     */
+    private static int writeNode(SQLExpr node, Map<SQLExpr, Integer> numbers, PrintWriter out) {
+        Integer number = numbers.get(node);
+        if(number != null) {
+            return number;
+        }
+        StringBuilder args = new StringBuilder();
+        for(SQLExpr arg: node.args) {
+            args.append(args.length() == 0 ? "" : " ").append(writeNode(arg, numbers, out));
+        }
+        out.print("N\t" + node.type + "\t" + node.word + "\t" + args + "\n");
+        number = numbers.size();
+        numbers.put(node, number);
+        return number;
+    }
+
+    /*
+        Summarizes how well the cache has worked
+
+        @return String one line with the hits, misses and entries
+     */
+    public synchronized String statsText() {
+        long lookups = hits + misses;
+        String rate = (lookups == 0) ? "" : String.format(" (%.1f%% hits)", 100.0 * hits / lookups);
+        return "UDF cache: " + hits + " hits, " + misses + " misses" + rate + ", " + entries.size() + " entries\n";
+    }
+}
@@ -0,0 +1,383 @@
+import java.util.*;
+/*
+    Integer width inference for a translated pipeline
+
+    spark.range produces a bigint id, and without help every translated column stays 64-bit.
+    The range bounds are known when the program is compiled, so this pass follows the interval
+    of values each column can hold through the stages, and casts every projected column to the
+    narrowest of smallint, int and bigint that holds it.
+
+    Spark evaluates an arithmetic node in the wider of its operand types and wraps around on
+    overflow. When some node of an expression could leave its type, the narrow columns the
+    expression reads are cast back up first, so the result always matches the 64-bit arithmetic
+    of the RDD program.
+
+    The interval, type and needed width of every node are found once for each stage and kept
+    by identity, so a node that is shared by several parts of an expression is only looked at
+    once.
+
+    @author Jonathan Gill
+ */
+public class WidthInference {
+    // integer types from narrowest to widest and the values each one holds
+    private static final String[] TYPES = {"smallint", "int", "bigint"};
+    private static final long[] MIN = {Short.MIN_VALUE, Integer.MIN_VALUE, Long.MIN_VALUE};
+    private static final long[] MAX = {Short.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE};
+
+    private Map<String, long[]> ranges = new HashMap<>(); // the interval of each input column
+    private Map<String, String> types = new HashMap<>();
+    // what was found for each node with the current ranges and types
+    private Map<SQLExpr, long[]> intervals = new IdentityHashMap<>();
+    private Map<SQLExpr, String> nodeTypes = new IdentityHashMap<>();
+    private Map<SQLExpr, Integer> neededRanks = new IdentityHashMap<>();
+    private Map<SQLExpr, Long> constants = new IdentityHashMap<>();
+
+    /*
+        Rewrites the columns and predicates of the plan with the casts described above
+
+        @param plan is the plan to rewrite
+        @return boolean true if some cast was added
+     */
+    public static boolean apply(DataframePlan plan) {
+        WidthInference inference = new WidthInference();
+        boolean changed = false;
+        inference.ranges.put("id", new long[]{plan.start, Math.max(plan.start, plan.end - 1)});
+        inference.types.put("id", "bigint");
+
+        for(DataframeStage stage: plan.stages) {
+            if(stage.type.equals("where")) {
+                SQLExpr predicate = stage.columns.get(0);
+                stage.columns.set(0, inference.widen(predicate));
+                changed |= stage.columns.get(0) != predicate;
+                refine(predicate, inference.ranges);
+            } else {
+                Map<String, long[]> newRanges = new HashMap<>();
+                Map<String, String> newTypes = new HashMap<>();
+                for(int i = 0; i < stage.columns.size(); i++) {
+                    SQLExpr before = stage.columns.get(i);
+                    SQLExpr column = inference.widen(before);
+                    long[] range = inference.interval(column);
+                    String type = inference.typeOf(column);
+                    String target = (range == null) ? "bigint" : narrowest(range);
+                    if(rank(type) >= 0 && rank(target) < rank(type)) {
+                        column = SQLExpr.make("Cast", target, column);
+                        type = target;
+                    }
+                    stage.columns.set(i, column);
+                    changed |= column != before;
+                    newRanges.put(stage.names.get(i), range);
+                    newTypes.put(stage.names.get(i), type);
+                }
+                inference.ranges = newRanges;
+                inference.types = newTypes;
+            }
+            inference.forget();
+        }
+        return changed;
+    }
+
+    // drops what was found for the nodes, once the ranges or types have changed
+    private void forget() {
+        intervals.clear();
+        nodeTypes.clear();
+        neededRanks.clear();
+        constants.clear();
+    }
+
+    /*
+        Finds the type Spark gives the result of an expression
+
+        @param expr is the expression
+        @param types maps each column name to its type, missing columns are bigint
+        @return String smallint, int, bigint or boolean
+     */
+    public static String typeOf(SQLExpr expr, Map<String, String> types) {
+        return typeOf(expr, types, new IdentityHashMap<SQLExpr, String>());
+    }
+
+    private String typeOf(SQLExpr expr) {
+        return typeOf(expr, types, nodeTypes);
+    }
+
+    // found holds the types worked out so far
+    private static String typeOf(SQLExpr expr, Map<String, String> types, Map<SQLExpr, String> found) {
+        String type = found.get(expr);
+        if(type == null) {
+            type = nodeType(expr, types, found);
+            found.put(expr, type);
+        }
+        return type;
+    }
+
+    private static String nodeType(SQLExpr expr, Map<String, String> types, Map<SQLExpr, String> found) {
+        if(expr.type.equals("Number")) {
+            return fits(expr.word, Integer.MIN_VALUE, Integer.MAX_VALUE) ? "int" : "bigint";
+        } else if(expr.type.equals("Column")) {
+            String type = types.get(expr.word);
+            return (type == null) ? "bigint" : type;
+        } else if(expr.type.equals("Cast")) {
+            return expr.word;
+        } else if(expr.type.equals("Comp")) {
+            return "boolean";
+        } else if(expr.type.equals("If")) {
+            return wider(typeOf(expr.args[1], types, found), typeOf(expr.args[2], types, found));
+        }
+        return wider(typeOf(expr.args[0], types, found), typeOf(expr.args[1], types, found));
+    }
+
+    /*
+        Wraps a value around the way Spark does when it overflows the given type
+
+        @param value is the exact 64-bit result
+        @param type is the type the result is stored in
+        @return long the value after the overflow
+     */
+    public static long wrap(long value, String type) {
+        if(type.equals("smallint")) {
+            return (short) value;
+        } else if(type.equals("int")) {
+            return (int) value;
+        }
+        return value;
+    }
+
+    /*
+        Casts the narrow columns of an expression up to the type every arithmetic node
+        needs, if any node could overflow the type Spark would otherwise use for it.
+
+        @return SQLExpr the expression, with casts added if they were needed
+     */
+    private SQLExpr widen(SQLExpr expr) {
+        int needed = neededRank(expr);
+        if(needed < 0) {
+            return expr;
+        }
+        return castColumns(expr, TYPES[needed], new IdentityHashMap<SQLExpr, SQLExpr>());
+    }
+
+    /*
+        Finds the narrowest type that holds every arithmetic node which overflows its own type
+
+        @return int rank of that type, or -1 if no node overflows
+     */
+    private int neededRank(SQLExpr expr) {
+        Integer found = neededRanks.get(expr);
+        if(found != null) {
+            return found;
+        }
+        int needed = -1;
+        for(SQLExpr arg: expr.args) {
+            needed = Math.max(needed, neededRank(arg));
+        }
+        if(expr.type.equals("Op") && expr.hasColumn()) {
+            long[] range = interval(expr);
+            int rank = (range == null) ? TYPES.length - 1 : rank(narrowest(range));
+            if(rank > rank(typeOf(expr))) {
+                needed = Math.max(needed, rank);
+            }
+        }
+        neededRanks.put(expr, needed);
+        return needed;
+    }
+
+    // cast holds the nodes already rewritten
+    private SQLExpr castColumns(SQLExpr expr, String target, Map<SQLExpr, SQLExpr> cast) {
+        SQLExpr result = cast.get(expr);
+        if(result != null) {
+            return result;
+        }
+        if(expr.type.equals("Column")) {
+            result = (rank(typeOf(expr)) < rank(target)) ? SQLExpr.make("Cast", target, expr) : expr;
+        } else {
+            SQLExpr[] args = new SQLExpr[expr.args.length];
+            for(int i = 0; i < args.length; i++) {
+                args[i] = castColumns(expr.args[i], target, cast);
+            }
+            result = expr.with(args);
+        }
+        cast.put(expr, result);
+        return result;
+    }
+
+    /*
+        Computes the interval of values an expression can take. Arithmetic is exact, the
+        caller makes sure no node overflows before it relies on the result.
+
+        @return long[] {lowest, highest}, or null if the value can leave the 64-bit range
+     */
+    private long[] interval(SQLExpr expr) {
+        if(intervals.containsKey(expr)) { // null, the 64-bit range is left, is remembered too
+            return intervals.get(expr);
+        }
+        long[] range = nodeInterval(expr);
+        intervals.put(expr, range);
+        return range;
+    }
+
+    private long[] nodeInterval(SQLExpr expr) {
+        if(expr.type.equals("Number")) {
+            if(!fits(expr.word, Long.MIN_VALUE, Long.MAX_VALUE)) {
+                return null;
+            }
+            long value = Long.parseLong(expr.word);
+            return new long[]{value, value};
+        } else if(expr.type.equals("Column")) {
+            return ranges.get(expr.word);
+        } else if(expr.type.equals("Comp")) {
+            return new long[]{0, 1};
+        } else if(expr.type.equals("Cast")) {
+            long[] range = interval(expr.args[0]);
+            int rank = rank(expr.word);
+            if(range == null || range[0] < MIN[rank] || range[1] > MAX[rank]) {
+                return new long[]{MIN[rank], MAX[rank]};
+            }
+            return range;
+        } else if(expr.type.equals("If")) {
+            long[] then = interval(expr.args[1]);
+            long[] otherwise = interval(expr.args[2]);
+            if(then == null || otherwise == null) {
+                return null;
+            }
+            return new long[]{Math.min(then[0], otherwise[0]), Math.max(then[1], otherwise[1])};
+        }
+
+        if(!expr.hasColumn()) { // literal arithmetic is done, and wraps, in the literal type
+            Long value = constant(expr);
+            return (value == null) ? null : new long[]{value, value};
+        }
+        long[] a = interval(expr.args[0]);
+        long[] b = interval(expr.args[1]);
+        if(a == null || b == null) {
+            return null;
+        }
+        try {
+            if(expr.word.equals("+")) {
+                return new long[]{Math.addExact(a[0], b[0]), Math.addExact(a[1], b[1])};
+            } else if(expr.word.equals("-")) {
+                return new long[]{Math.subtractExact(a[0], b[1]), Math.subtractExact(a[1], b[0])};
+            } else if(expr.word.equals("*")) {
+                long p1 = Math.multiplyExact(a[0], b[0]);
+                long p2 = Math.multiplyExact(a[0], b[1]);
+                long p3 = Math.multiplyExact(a[1], b[0]);
+                long p4 = Math.multiplyExact(a[1], b[1]);
+                return new long[]{Math.min(Math.min(p1, p2), Math.min(p3, p4)),
+                        Math.max(Math.max(p1, p2), Math.max(p3, p4))};
+            }
+            // % keeps the sign of the left side and is smaller than the largest divisor
+            long m = Math.max(Math.abs(Math.max(b[0], -Long.MAX_VALUE)), Math.abs(Math.max(b[1], -Long.MAX_VALUE)));
+            if(m == 0) {
+                return new long[]{0, 0};
+            }
+            long low = (a[0] >= 0) ? 0 : Math.max(a[0], -(m - 1));
+            long high = (a[1] <= 0) ? 0 : Math.min(a[1], m - 1);
+            return new long[]{low, high};
+        } catch(ArithmeticException e) {
+            return null;
+        }
+    }
+
+    /*
+        Evaluates arithmetic on literals the way Spark does
+
+        @return Long the value, or null if it cannot be computed
+     */
+    private Long constant(SQLExpr expr) {
+        if(constants.containsKey(expr)) {
+            return constants.get(expr);
+        }
+        Long value = nodeConstant(expr);
+        constants.put(expr, value);
+        return value;
+    }
+
+    private Long nodeConstant(SQLExpr expr) {
+        if(expr.type.equals("Number")) {
+            return fits(expr.word, Long.MIN_VALUE, Long.MAX_VALUE) ? Long.parseLong(expr.word) : null;
+        } else if(!expr.type.equals("Op")) {
+            return null;
+        }
+        Long a = constant(expr.args[0]);
+        Long b = constant(expr.args[1]);
+        if(a == null || b == null || (expr.word.equals("%") && b == 0)) {
+            return null;
+        }
+        long value;
+        if(expr.word.equals("+")) {
+            value = a + b;
+        } else if(expr.word.equals("-")) {
+            value = a - b;
+        } else if(expr.word.equals("*")) {
+            value = a * b;
+        } else {
+            value = a % b;
+        }
+        return wrap(value, typeOf(expr));
+    }
+
+    /*
+        Narrows the column intervals with a filter of the form _k <Comp> <number>
+
+        @param predicate is the filter condition
+        @param ranges maps each column name to its interval, it is updated in place
+     */
+    private static void refine(SQLExpr predicate, Map<String, long[]> ranges) {
+        if(!predicate.isColumnBound() || predicate.word.equals("!=")) {
+            return;
+        }
+        SQLExpr bound = predicate.columnFirst();
+        long[] range = ranges.get(bound.args[0].word);
+        if(range == null || !fits(bound.args[1].word, Long.MIN_VALUE + 1, Long.MAX_VALUE - 1)) {
+            return;
+        }
+        long k = Long.parseLong(bound.args[1].word);
+        long low = range[0];
+        long high = range[1];
+        if(bound.word.equals(">")) {
+            low = Math.max(low, k + 1);
+        } else if(bound.word.equals(">=")) {
+            low = Math.max(low, k);
+        } else if(bound.word.equals("<")) {
+            high = Math.min(high, k - 1);
+        } else if(bound.word.equals("<=")) {
+            high = Math.min(high, k);
+        } else {
+            low = Math.max(low, k);
+            high = Math.min(high, k);
+        }
+        if(high < low) { // no rows survive, any type will do
+            high = low;
+        }
+        ranges.put(bound.args[0].word, new long[]{low, high});
+    }
+
+    private static String narrowest(long[] range) {
+        for(int i = 0; i < TYPES.length; i++) {
+            if(range[0] >= MIN[i] && range[1] <= MAX[i]) {
+                return TYPES[i];
+            }
+        }
+        return "bigint";
+    }
+
+    private static String wider(String a, String b) {
+        return (rank(a) >= rank(b)) ? a : b;
+    }
+
+    private static int rank(String type) {
+        for(int i = 0; i < TYPES.length; i++) {
+            if(TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean fits(String number, long min, long max) {
+        try {
+            long value = Long.parseLong(number);
+            return value >= min && value <= max;
+        } catch(NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,5 @@
+sc.range(0,1000)
+  .filter(x => x >= 100)
+  .filter(x => x%3 == 0)
+  .map(i=>i*i)
+  .collect()
\ No newline at end of file
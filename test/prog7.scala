@@ -0,0 +1,4 @@
+sc.range(0,1000000)
+  .filter(x => x%7 == 0)
+  .map(i=>i%1000)
+  .reduce((a,b)=>a+b)
\ No newline at end of file
@@ -0,0 +1,12 @@
+sc.range(0,1000)
+  .map(i=>i*3)
+  .filter(x => x%2 == 0)
+  .collect()
+sc.range(0,1000)
+  .map(i=>i*3)
+  .count()
+sc.range(0,1000)
+  .map(i=>i*3)
+  .filter(x => x%2 == 0)
+  .map(y => y+1)
+  .sum()
\ No newline at end of file
@@ -0,0 +1,3 @@
+sc.range(0,1000)
+  .map(i=>{val v0=i+1; val v1=v0+v0; val v2=v1+v1; val v3=v2+v2; val v4=v3+v3; val v5=v4+v4; val v6=v5+v5; val v7=v6+v6; val v8=v7+v7; val v9=v8+v8; val v10=v9+v9; val v11=v10+v10; val v12=v11+v11; val v13=v12+v12; val v14=v13+v13; val v15=v14+v14; v15})
+  .collect()